@@ -0,0 +1,68 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import me.deezee.photonamer.process.NamerStage;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public final class ExecutorGroup implements AutoCloseable {
+
+    private final ExecutorStrategy strategy;
+    private final Map<NamerStage, ExecutorService> executors;
+    private final Set<ExecutorService> distinct;
+
+    ExecutorGroup(ExecutorStrategy strategy, Map<NamerStage, ExecutorService> executors) {
+        this.strategy = Validate.notNull(strategy);
+        this.executors = ImmutableMap.copyOf(executors);
+
+        // Several stages may share the same executor
+        this.distinct = ImmutableSet.copyOf(executors.values());
+    }
+
+    public ExecutorStrategy getStrategy() {
+        return strategy;
+    }
+
+    public ExecutorService get(NamerStage stage) {
+        return Validate.notNull(executors.get(stage), "No executor for stage " + stage);
+    }
+
+    public void shutdown() {
+        distinct.forEach(ExecutorService::shutdown);
+    }
+
+    public void shutdownNow() {
+        distinct.forEach(ExecutorService::shutdownNow);
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService executor : distinct) {
+            if (!executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                return false;
+        }
+
+        return true;
+    }
+
+    public boolean isTerminated() {
+        return distinct.stream().allMatch(ExecutorService::isTerminated);
+    }
+
+    @Override
+    public void close() {
+        shutdownNow();
+        ServiceExecutor.release(this);
+    }
+}
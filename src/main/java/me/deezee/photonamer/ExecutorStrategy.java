@@ -0,0 +1,29 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer;
+
+public enum ExecutorStrategy {
+
+    SINGLE_THREAD   ("Every stage runs on a single thread of its own"),
+    FIXED_POOL      ("Every stage runs on a fixed pool sized to its thread budget"),
+    WORK_STEALING   ("Every stage runs on a work-stealing fork/join pool sized to its thread budget"),
+    CPU_IO_SPLIT    ("CPU-bound stages share one pool and I/O-bound stages share another");
+
+    private final String description;
+
+    ExecutorStrategy(String description) {
+        this.description = description;
+    }
+
+    public int getThreads(int budget) {
+        return this == SINGLE_THREAD ? 1 : budget;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
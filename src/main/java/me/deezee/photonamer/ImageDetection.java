@@ -0,0 +1,33 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer;
+
+public enum ImageDetection {
+
+    EXTENSION   ("Files are images if their extension is allowed"),
+    VERIFIED    ("Files with an allowed extension must also start with a known image signature"),
+    CONTENT     ("Files are images if they start with a known image signature, whatever their name");
+
+    private final String description;
+
+    ImageDetection(String description) {
+        this.description = description;
+    }
+
+    // Whether file names alone can't rule a file out
+    public boolean ignoresName() {
+        return this == CONTENT;
+    }
+
+    public boolean sniffs() {
+        return this != EXTENSION;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
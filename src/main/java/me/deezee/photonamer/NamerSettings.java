@@ -7,21 +7,41 @@
 package me.deezee.photonamer;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import me.deezee.photonamer.format.NamerFormat;
+import me.deezee.photonamer.meta.ImageType;
 import me.deezee.photonamer.process.NamerProcessException;
+import me.deezee.photonamer.process.NamerStage;
 import me.deezee.photonamer.util.Formatting;
 import org.apache.commons.lang3.Validate;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class NamerSettings {
 
+    private static final Set<String> RAW_EXTENSIONS = toExtensionSet(List.of(NamerFormat.RAW_EXTS));
+    private static final Set<String> SIDECAR_EXTENSIONS = toExtensionSet(List.of(NamerFormat.SIDECAR_EXTS));
+
     private static final String ERROR_SRC_CANNOT_BE_NULL = "Source directory cannot be null";
     private static final String ERROR_TGT_CANNOT_BE_NULL = "Output directory cannot be null";
     private static final String ERROR_FORMAT_CANNOT_BE_NULL = "Namer formatting styles cannot be null";
     private static final String ERROR_IMG_EXT_CANNOT_BE_NULL = "No null image extensions allowed";
+    private static final String ERROR_WORKERS_NOT_POSITIVE = "Worker count must be at least 1";
+    private static final String ERROR_QUEUE_NOT_POSITIVE = "Stage queue capacity must be at least 1";
+    private static final String ERROR_CONCURRENCY_NEGATIVE = "I/O concurrency cannot be negative (0 picks a default)";
+    private static final String ERROR_STRATEGY_CANNOT_BE_NULL = "Executor strategy cannot be null";
+    private static final String ERROR_DETECTION_CANNOT_BE_NULL = "Image detection mode cannot be null";
+    private static final String ERROR_SETTLE_TIME_NEGATIVE = "Watch settle time cannot be negative";
+    private static final String ERROR_HISTORY_NEGATIVE = "Undo history limit cannot be negative (0 picks a default)";
 
     private Path            directory           = null;
     private Path            outputDirectory     = null;
@@ -29,6 +49,19 @@ public class NamerSettings {
     private boolean         incSubDirs          = false;
     private boolean filterDateTimeTakenOnly = false;
     private List<String>    imgExtensions       = null;
+    private Set<String>     imgExtensionSet     = null;
+    private ImageDetection  imageDetection      = ImageDetection.EXTENSION;
+    private boolean         keepFileSetsTogether = true;
+    private boolean         followLinks         = false;
+    private boolean         fullScan            = false;
+    private int             workers             = 1;
+    private int             queueCapacity       = 256;
+    private final Map<NamerStage, Integer> stageThreads = new EnumMap<>(NamerStage.class);
+    private ExecutorStrategy executorStrategy   = ExecutorStrategy.FIXED_POOL;
+    private int             inputConcurrency    = 0;
+    private int             outputConcurrency   = 0;
+    private long            watchSettleMillis   = 2000;
+    private int             historyLimit        = 0;
 
     public Path getDirectory() {
         return directory;
@@ -82,6 +115,128 @@ public class NamerSettings {
     public NamerSettings setImageExtensions(List<String> imgExtensions) {
         this.imgExtensions = ImmutableList.copyOf(Validate.noNullElements(
                 imgExtensions, ERROR_IMG_EXT_CANNOT_BE_NULL));
+        this.imgExtensionSet = toExtensionSet(this.imgExtensions);
+        return this;
+    }
+
+    public ImageDetection getImageDetection() {
+        return imageDetection;
+    }
+
+    public NamerSettings setImageDetection(ImageDetection imageDetection) {
+        this.imageDetection = Validate.notNull(imageDetection, ERROR_DETECTION_CANNOT_BE_NULL);
+        return this;
+    }
+
+    public boolean isKeepFileSetsTogether() {
+        return keepFileSetsTogether;
+    }
+
+    public NamerSettings setKeepFileSetsTogether(boolean keepFileSetsTogether) {
+        this.keepFileSetsTogether = keepFileSetsTogether;
+        return this;
+    }
+
+    public boolean isFollowLinks() {
+        return followLinks;
+    }
+
+    public NamerSettings setFollowLinks(boolean followLinks) {
+        this.followLinks = followLinks;
+        return this;
+    }
+
+    public boolean isFullScan() {
+        return fullScan;
+    }
+
+    public NamerSettings setFullScan(boolean fullScan) {
+        // Walks every directory, even those that haven't changed since the last run
+        this.fullScan = fullScan;
+        return this;
+    }
+
+    public int getWorkerCount() {
+        return workers;
+    }
+
+    public NamerSettings setWorkerCount(int workers) {
+        Validate.isTrue(workers > 0, ERROR_WORKERS_NOT_POSITIVE);
+        this.workers = workers;
+        return this;
+    }
+
+    public int getStageThreads(NamerStage stage) {
+        // Unless given their own budget, all stages share the worker count
+        return stageThreads.getOrDefault(stage, workers);
+    }
+
+    public NamerSettings setStageThreads(NamerStage stage, int threads) {
+        Validate.isTrue(threads > 0, ERROR_WORKERS_NOT_POSITIVE);
+        stageThreads.put(Validate.notNull(stage), threads);
+        return this;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public NamerSettings setQueueCapacity(int queueCapacity) {
+        Validate.isTrue(queueCapacity > 0, ERROR_QUEUE_NOT_POSITIVE);
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public ExecutorStrategy getExecutorStrategy() {
+        return executorStrategy;
+    }
+
+    public NamerSettings setExecutorStrategy(ExecutorStrategy executorStrategy) {
+        this.executorStrategy = Validate.notNull(executorStrategy, ERROR_STRATEGY_CANNOT_BE_NULL);
+        return this;
+    }
+
+    public int getInputConcurrency() {
+        return inputConcurrency;
+    }
+
+    public NamerSettings setInputConcurrency(int inputConcurrency) {
+        // 0 picks a default depending on the kind of device the source directory sits on
+        Validate.isTrue(inputConcurrency >= 0, ERROR_CONCURRENCY_NEGATIVE);
+        this.inputConcurrency = inputConcurrency;
+        return this;
+    }
+
+    public int getOutputConcurrency() {
+        return outputConcurrency;
+    }
+
+    public NamerSettings setOutputConcurrency(int outputConcurrency) {
+        // 0 picks a default depending on the kind of device the output directory sits on
+        Validate.isTrue(outputConcurrency >= 0, ERROR_CONCURRENCY_NEGATIVE);
+        this.outputConcurrency = outputConcurrency;
+        return this;
+    }
+
+    public long getWatchSettleMillis() {
+        return watchSettleMillis;
+    }
+
+    public NamerSettings setWatchSettleMillis(long watchSettleMillis) {
+        // How long a new file's size and modification time must stay the same before it is renamed
+        Validate.isTrue(watchSettleMillis >= 0, ERROR_SETTLE_TIME_NEGATIVE);
+        this.watchSettleMillis = watchSettleMillis;
+        return this;
+    }
+
+    public int getHistoryLimit() {
+        return historyLimit;
+    }
+
+    public NamerSettings setHistoryLimit(int historyLimit) {
+        // 0 keeps every rename of a single run, and a bounded number while watching
+        Validate.isTrue(historyLimit >= 0, ERROR_HISTORY_NEGATIVE);
+        this.historyLimit = historyLimit;
         return this;
     }
 
@@ -97,7 +252,26 @@ public class NamerSettings {
     }
 
     public boolean isImage(String filename) {
-        return isImage(filename, imgExtensions);
+        return imgExtensionSet.contains(getExtension(filename));
+    }
+
+    public boolean isSidecar(String filename) {
+        return SIDECAR_EXTENSIONS.contains(getExtension(filename));
+    }
+
+    public boolean isRaw(String filename) {
+        return RAW_EXTENSIONS.contains(getExtension(filename));
+    }
+
+    // Whether a file could be an image going by its name, before anything has been read
+    public boolean isCandidate(String filename) {
+        return imageDetection.ignoresName() || isImage(filename);
+    }
+
+    // Whether a candidate file is an image, reading its signature if the detection mode asks for it
+    public boolean isImage(Path file, BasicFileAttributes attributes) throws IOException {
+        if (!imageDetection.sniffs()) return true;
+        return ImageType.of(file, attributes).isImage();
     }
 
     public static boolean isImage(Path file, String... allowedImgExts) {
@@ -113,7 +287,25 @@ public class NamerSettings {
     }
 
     public static boolean isImage(String filename, List<String> allowedImgExts) {
-        return allowedImgExts.contains(Formatting.getFilenameComponents(filename).getValue());
+        String ext = getExtension(filename);
+        for (String allowed : allowedImgExts)
+            if (allowed.equalsIgnoreCase(ext))
+                return true;
+
+        return false;
+    }
+
+    private static Set<String> toExtensionSet(List<String> extensions) {
+        // Camera cards mostly use upper case extensions, so extensions are compared in lower case
+        Set<String> set = new HashSet<>();
+        for (String ext : extensions)
+            set.add(ext.toLowerCase(Locale.ROOT));
+
+        return ImmutableSet.copyOf(set);
+    }
+
+    private static String getExtension(String filename) {
+        return Formatting.getFilenameComponents(filename).getValue().toLowerCase(Locale.ROOT);
     }
 
     private static boolean validFile(Path file) {
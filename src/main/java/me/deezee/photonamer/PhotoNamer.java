@@ -21,6 +21,7 @@ import javafx.stage.DirectoryChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.util.StringConverter;
+import me.deezee.photonamer.cache.MetadataCache;
 import me.deezee.photonamer.format.NamerFormat;
 import me.deezee.photonamer.format.NamerFormatCondition;
 import me.deezee.photonamer.process.*;
@@ -33,6 +34,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.controlsfx.control.CheckComboBox;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.file.Files;
@@ -40,6 +42,7 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 public final class PhotoNamer {
 
@@ -49,6 +52,7 @@ public final class PhotoNamer {
         private static final String PREVIEW_CHECK_INPUT     = "Please select a valid input folder";
         private static final String PREVIEW_CHECK_FORMAT    = "Please input a format";
         private static final String PREVIEW_CHECK_OUTPUT    = "Please select a valid output folder or don't use it at all";
+        private static final String PLAN_REPORT             = "photonamer-plan.tsv";
         private static final Border DEFAULT_BORDER          = new Border(new BorderStroke(
                 Color.LIGHTGRAY, BorderStrokeStyle.SOLID, CornerRadii.EMPTY, BorderWidths.DEFAULT));
 
@@ -63,11 +67,19 @@ public final class PhotoNamer {
         private final Label     outputLabel         = new Label("Output Folder");
         private final Button    rename              = new Button("Rename");
         private final Button    undo                = new Button("Undo");
+        private final Button    pause               = new Button("Pause");
+        private final Button    cancel              = new Button("Cancel");
         private final CheckBox  outputDir           = new CheckBox();
         private final CheckComboBox<String> ccb     = new CheckComboBox<>();
 
         private NamerFormat currentFormat = null;
 
+        // Launched with --full: walk every directory, even those unchanged since the last run
+        private boolean fullScan = false;
+
+        // Launched with --dry-run: only plan the renames, and write them to a report in the output folder
+        private boolean dryRun = false;
+
         // TODO: Switch to FXML and CSS styling
         @Override
         public void start(Stage primaryStage) {
@@ -80,6 +92,12 @@ public final class PhotoNamer {
             Printer.log(Printer.BORDER);
             Printer.enableDebugging(true);
 
+            fullScan = getParameters().getUnnamed().contains("--full");
+            if (fullScan) Printer.log("Full rescan requested, so unchanged directories are walked as well");
+
+            dryRun = getParameters().getUnnamed().contains("--dry-run");
+            if (dryRun) Printer.log("Dry run requested, so photos are only planned to be renamed");
+
             VBox box = new VBox();
             VBox paddedBox = new VBox();
             paddedBox.setPadding(new Insets(20));
@@ -111,6 +129,10 @@ public final class PhotoNamer {
                             // If correct path, then remember choice
                             dirChooser.setInitialDirectory(new File(inputDirField.getText()));
                         }
+
+                        // Renames of an earlier session can be undone until something new is renamed
+                        if (!dryRun && NamerProcessFactory.getInstance().getCurrentProcess().isEmpty())
+                            undo.setDisable(!hasJournal(newText, outputDirField.getText()));
                     });
                     grid.add(inputDirField, 1, 0);
 
@@ -167,7 +189,7 @@ public final class PhotoNamer {
                         scrollPane.setContent(varGrid);
                         scrollPane.setPrefViewportHeight(300);
 
-                        List<Integer> separatorLines = Arrays.asList(2, 15, 28);
+                        List<Integer> separatorLines = Arrays.asList(2, 15, 28, 41, 44);
 
                         int row = 1;
                         for (Map.Entry<NamerFormat.Var, NamerFormatCondition> entry : NamerFormat.getVariables().entrySet()) {
@@ -219,6 +241,8 @@ public final class PhotoNamer {
             Button outputButton = new Button("Select");
             CheckBox includeSubDirs = new CheckBox();
             CheckBox dateTimeTakenOnly = new CheckBox();
+            CheckBox detectByContents = new CheckBox();
+            CheckBox keepFileSets = new CheckBox();
             ComboBox<NamerFormat.Var> groupBy = new ComboBox<>();
 
             // Advanced settings section
@@ -256,14 +280,18 @@ public final class PhotoNamer {
                     checkBoxGrid.add(new Label("Custom Output Folder"), 0, 1);
 
                     checkBoxGrid.add(new Label("Datetime Taken Only"), 2, 0);
-                    //checkBoxGrid.add(new Label("<Something Else>"), 2, 1);
+                    checkBoxGrid.add(new Label("Detect By Contents"), 2, 1);
+                    checkBoxGrid.add(new Label("Keep RAW/Sidecar Sets"), 0, 2);
 
                     // Checkbox Columns
                     checkBoxGrid.add(includeSubDirs, 1, 0);
                     checkBoxGrid.add(outputDir, 1, 1);
 
                     checkBoxGrid.add(dateTimeTakenOnly, 3, 0);
-                    //checkBoxGrid.add(new CheckBox(), 3, 1);
+                    checkBoxGrid.add(detectByContents, 3, 1);
+                    checkBoxGrid.add(keepFileSets, 1, 2);
+
+                    keepFileSets.setSelected(true);
                 }
 
                 // Output directory
@@ -276,7 +304,13 @@ public final class PhotoNamer {
                     outputDirField.setDisable(true);
                     outputDirField.setPrefWidth(300);
                     outputDirField.setPromptText("Location");
-                    outputDirField.textProperty().addListener((obs, oldText, newText) -> validateInput());
+                    outputDirField.textProperty().addListener((obs, oldText, newText) -> {
+                        validateInput();
+
+                        // The journal is kept in the output folder
+                        if (!dryRun && NamerProcessFactory.getInstance().getCurrentProcess().isEmpty())
+                            undo.setDisable(!hasJournal(inputDirField.getText(), newText));
+                    });
                     grid.add(outputDirField, 1, 1);
 
                     // Directory choose button
@@ -350,34 +384,20 @@ public final class PhotoNamer {
                             .setFormatting(currentFormat)
                             .setIncludeSubDirectories(includeSubDirs.isSelected())
                             .setFilterDateTimeTakenOnly(dateTimeTakenOnly.isSelected())
-                            .setImageExtensions(ccb.getCheckModel().getCheckedItems());
-
-                    NamerProcessFinishTask onFinish = result -> {
-                        NamerProcessResult.Type resType = result.getType();
-                        String typeStr = result.getType().toString().toLowerCase();
-
-                        Alert alert = new Alert(Alert.AlertType.INFORMATION, "", ButtonType.CLOSE);
-                        ((Stage) alert.getDialogPane().getScene().getWindow()).getIcons().add(Resources.MAIN_ICON);
-                        alert.setTitle(Formatting.capitalise(typeStr));
-                        alert.setHeaderText(result.getType().getMessage());
-
-                        Label content = new Label(String.format("%d images have been renamed in %.2fs.",
-                                result.getAmountChanged(), result.getTimeCompleted(TimeUnit.MILLISECONDS) / 1000f));
-                        content.setPadding(new Insets(10));
-
-                        alert.getDialogPane().setContent(content);
-                        alert.show();
-
-                        if (resType == NamerProcessResult.Type.SUCCESS) {
-                            undo.setDisable(false);
-                            return true;
-                        }
-
-                        return false;
-                    };
+                            .setImageExtensions(ccb.getCheckModel().getCheckedItems())
+                            .setImageDetection(detectByContents.isSelected()
+                                    ? ImageDetection.CONTENT : ImageDetection.EXTENSION)
+                            .setKeepFileSetsTogether(keepFileSets.isSelected())
+                            .setFullScan(fullScan)
+                            .setWorkerCount(Runtime.getRuntime().availableProcessors());
 
                     try {
-                        NamerProcessFactory.getInstance().newProcess(settings, onFinish).start();
+                        NamerProcess process = NamerProcessFactory.getInstance()
+                                .newProcess(settings, newFinishTask(tgt));
+                        if (dryRun) process.planAsync();
+                        else        process.startAsync();
+                        pause.setDisable(false);
+                        cancel.setDisable(false);
                     } catch (NamerProcessException e) {
                         alertError(e);
                     }
@@ -386,19 +406,46 @@ public final class PhotoNamer {
                 // Undo button
                 undo.setDisable(true);
                 undo.setOnAction(event -> {
-                    Optional<NamerProcess> process = NamerProcessFactory.getInstance().getCurrentProcess();
-                    if (process.isPresent()) {
-                        try {
-                            process.get().undo();
-                        } catch (NamerProcessException e) {
-                            alertError(e);
+                    try {
+                        // Nothing renamed yet in this session, so undo whatever the last one left in the journal
+                        Optional<NamerProcess> process = NamerProcessFactory.getInstance().getCurrentProcess();
+                        if (process.isEmpty()) {
+                            Path src = Path.of(inputDirField.getText());
+                            Path tgt = Strings.isNullOrEmpty(outputDirField.getText())
+                                    ? src : Path.of(outputDirField.getText());
+                            process = NamerProcessFactory.getInstance().recoverProcess(src, tgt, newFinishTask(tgt));
+                        }
+
+                        if (process.isPresent()) {
+                            process.get().undoAsync();
+                            pause.setDisable(false);
+                            cancel.setDisable(false);
                         }
+                    } catch (NamerProcessException e) {
+                        alertError(e);
                     }
                 });
 
+                // Pause button, which doubles as the resume button
+                pause.setDisable(true);
+                pause.setOnAction(event -> NamerProcessFactory.getInstance().getCurrentProcess().ifPresent(process -> {
+                    if (process.isPaused()) {
+                        process.resume();
+                        pause.setText("Pause");
+                    } else {
+                        process.pause();
+                        pause.setText("Resume");
+                    }
+                }));
+
+                // Cancel button
+                cancel.setDisable(true);
+                cancel.setOnAction(event -> NamerProcessFactory.getInstance().getCurrentProcess()
+                        .ifPresent(NamerProcess::cancel));
+
                 buttons.setSpacing(20);
                 buttons.setAlignment(Pos.CENTER);
-                buttons.getChildren().addAll(rename, undo);
+                buttons.getChildren().addAll(rename, undo, pause, cancel);
             }
 
             paddedBox.getChildren().addAll(inputPathPane, advSettingsPane, buttons);
@@ -421,10 +468,81 @@ public final class PhotoNamer {
             primaryStage.show();
         }
 
+        @Override
+        public void stop() {
+            // Stop any running processes and release the shared executors
+            ServiceExecutor.shutdown();
+            MetadataCache.closeDefault();
+        }
+
         public TextField getFormatField() {
             return formatField;
         }
 
+        // Shows how a rename, or an undo, went
+        private NamerProcessFinishTask newFinishTask(Path tgt) {
+            return result -> {
+                NamerProcessResult.Type resType = result.getType();
+                String typeStr = result.getType().toString().toLowerCase();
+
+                // A dry run leaves nothing to undo, only the report of what would have been renamed
+                float seconds = result.getTimeCompleted(TimeUnit.MILLISECONDS) / 1000f;
+                String summary = String.format("%d images have been renamed in %.2fs.",
+                        result.getAmountChanged(), seconds);
+                if (dryRun) {
+                    Path report = tgt.resolve(PLAN_REPORT);
+                    Optional<RenamePlan> plan = NamerProcessFactory.getInstance().getCurrentProcess()
+                            .flatMap(NamerProcess::getPlan);
+                    try {
+                        if (plan.isPresent()) plan.get().export(report);
+                        summary = String.format("%d images would be renamed, planned in %.2fs. See '%s'.",
+                                result.getAmountChanged(), seconds, report);
+                    } catch (IOException e) {
+                        alertError(e);
+                    }
+                }
+
+                String content = summary;
+
+                // Called from the process thread, so hop back onto the UI thread
+                Platform.runLater(() -> {
+                    Alert alert = new Alert(Alert.AlertType.INFORMATION, "", ButtonType.CLOSE);
+                    ((Stage) alert.getDialogPane().getScene().getWindow()).getIcons().add(Resources.MAIN_ICON);
+                    alert.setTitle(Formatting.capitalise(typeStr));
+                    alert.setHeaderText(result.getType().getMessage());
+
+                    Label label = new Label(content);
+                    label.setPadding(new Insets(10));
+
+                    alert.getDialogPane().setContent(label);
+                    alert.show();
+
+                    // Whatever a cancelled run managed to move can still be undone
+                    if (!dryRun && (resType == NamerProcessResult.Type.SUCCESS
+                            || resType == NamerProcessResult.Type.CANCELLED))
+                        undo.setDisable(false);
+
+                    pause.setText("Pause");
+                    pause.setDisable(true);
+                    cancel.setDisable(true);
+                });
+
+                return resType == NamerProcessResult.Type.SUCCESS;
+            };
+        }
+
+        private static boolean hasJournal(String input, String output) {
+            try {
+                if (Strings.isNullOrEmpty(input)) return false;
+
+                // No output folder means renaming in place
+                Path src = Path.of(input);
+                return UndoJournal.exists(src, Strings.isNullOrEmpty(output) ? src : Path.of(output));
+            } catch (InvalidPathException ignore) {
+                return false;
+            }
+        }
+
         private boolean validateInput() {
             String input = inputDirField.getText();
             String format = formatField.getText();
@@ -483,20 +601,24 @@ public final class PhotoNamer {
                     }
                 }
 
-                // Attempt to grab one image
-                try {
-                    Optional<Path> img = Files.walk(in, 1)
-                            .filter(file -> NamerSettings.isImage(file, NamerFormat.DEFAULT_ALLOWED_EXTS))
-                            .findFirst();
-
-                    if (img.isPresent()) {
-                        // Generate new file name as an example
-                        Pair<String, String> comp = new PhotoWrapper(img.get()).format(currentFormat, 0);
-                        previewLabel.setText(comp.getKey() + "." + comp.getValue());
+                // Attempt to grab one image away from the UI thread
+                Path previewDir = in;
+                NamerFormat previewFormat = currentFormat;
+                ServiceExecutor.getPreviewExecutor().submit(() -> {
+                    try (Stream<Path> files = Files.walk(previewDir, 1)) {
+                        Optional<Path> img = files
+                                .filter(file -> NamerSettings.isImage(file, NamerFormat.DEFAULT_ALLOWED_EXTS))
+                                .findFirst();
+
+                        if (img.isPresent()) {
+                            // Generate new file name as an example
+                            Pair<String, String> comp = new PhotoWrapper(img.get()).format(previewFormat, 0);
+                            Platform.runLater(() -> previewLabel.setText(comp.getKey() + "." + comp.getValue()));
+                        }
+                    } catch (Exception e) {
+                        alertError(e);
                     }
-                } catch (Exception e) {
-                    alertError(e);
-                }
+                });
 
                 // Validation passed
                 rename.setDisable(false);
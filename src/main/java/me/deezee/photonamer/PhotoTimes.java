@@ -0,0 +1,71 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Optional;
+
+public final class PhotoTimes {
+
+    private final ZonedDateTime created;
+    private final ZonedDateTime modified;
+    private final ZonedDateTime taken;
+    private final boolean takenResolved;
+
+    private PhotoTimes(ZonedDateTime created, ZonedDateTime modified, ZonedDateTime taken, boolean takenResolved) {
+        this.created = created;
+        this.modified = modified;
+        this.taken = taken;
+        this.takenResolved = takenResolved;
+    }
+
+    // The taken date is left unresolved, so that the metadata is only parsed when it is needed
+    public static PhotoTimes of(BasicFileAttributes attributes) {
+        Validate.notNull(attributes, "File attributes cannot be null");
+
+        ZoneId zone = ZoneId.systemDefault();
+        return new PhotoTimes(
+                toZoned(attributes.creationTime(), zone),
+                toZoned(attributes.lastModifiedTime(), zone),
+                null, false);
+    }
+
+    public PhotoTimes withTaken(Instant taken) {
+        return new PhotoTimes(created, modified,
+                taken == null ? null : ZonedDateTime.ofInstant(taken, created.getZone()), true);
+    }
+
+    public ZonedDateTime getCreated() {
+        return created;
+    }
+
+    public ZonedDateTime getModified() {
+        return modified;
+    }
+
+    public Optional<ZonedDateTime> getTaken() {
+        return Optional.ofNullable(taken);
+    }
+
+    public ZonedDateTime getTakenOrCreated() {
+        return taken == null ? created : taken;
+    }
+
+    public boolean isTakenResolved() {
+        return takenResolved;
+    }
+
+    private static ZonedDateTime toZoned(FileTime time, ZoneId zone) {
+        return ZonedDateTime.ofInstant(time.toInstant(), zone);
+    }
+}
@@ -8,39 +8,67 @@ package me.deezee.photonamer;
 
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
+import com.drew.lang.GeoLocation;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.GpsDirectory;
+import me.deezee.photonamer.cache.MetadataCache;
+import me.deezee.photonamer.cache.ParsedMetadataCache;
 import me.deezee.photonamer.format.NamerFormat;
-import me.deezee.photonamer.format.NamerFormatCondition;
+import me.deezee.photonamer.geo.Gazetteer;
+import me.deezee.photonamer.meta.ExifFastReader;
 import me.deezee.photonamer.process.NamerProcessException;
+import me.deezee.photonamer.process.TargetRegistry;
+import me.deezee.photonamer.util.ChannelInputStream;
+import me.deezee.photonamer.util.ContentHash;
 import me.deezee.photonamer.util.Formatting;
 import me.deezee.photonamer.util.Printer;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.time.temporal.ChronoField;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
 
 public class PhotoWrapper implements BasicFileAttributes, Serializable {
 
+    // EXIF lives in the first segments of a JPEG and the first IFDs of a TIFF based RAW
+    private static final long HEADER_READ_BUDGET = 256 * 1024;
+
+    // Some RAW and PNG files keep their EXIF further in. Skipping over image data costs nothing,
+    // so this only bounds what is actually read, and a file without EXIF is never read in full.
+    private static final long FALLBACK_READ_BUDGET = 4 * 1024 * 1024;
+
+    // Compares every fast EXIF read against a full read, and logs any difference
+    private static final boolean VERIFY_FAST_EXIF = Boolean.getBoolean("photonamer.exif.verify");
+
     private final Path inputPath;
     private BasicFileAttributes _attributes;
     private Metadata _meta;
+    private long _metadataBytes;
+    private MetadataCache.Entry _cached;
     private ExifSubIFDDirectory _exifDir;
+    private PhotoTimes _times;
+    private Optional<Gazetteer.Place> _place;
+    private final Map<ContentHash, String> _hashes = new EnumMap<>(ContentHash.class);
 
     public PhotoWrapper(String inputPath) throws NamerProcessException, InvalidPathException {
         // Validate that all characters are legal
@@ -62,6 +90,13 @@ public class PhotoWrapper implements BasicFileAttributes, Serializable {
         }
     }
 
+    public PhotoWrapper(Path inputPath, BasicFileAttributes attributes) throws NamerProcessException {
+        this(inputPath);
+
+        // Reuse the attributes read while walking the directory, rather than reading them again
+        this._attributes = attributes;
+    }
+
     public Path getInputPath() {
         return inputPath;
     }
@@ -69,8 +104,24 @@ public class PhotoWrapper implements BasicFileAttributes, Serializable {
     public Metadata getMetadata() {
         // Lazy init to increase performance when loading a full directory
         if (_meta == null) {
+            // The preview or an earlier run might have parsed this photo already
+            _meta = ParsedMetadataCache.get(inputPath, getAttributes()).orElse(null);
+            if (_meta != null) return _meta;
+
             try {
-                _meta = ImageMetadataReader.readMetadata(Files.newInputStream(this.inputPath));
+                _meta = readMetadata(HEADER_READ_BUDGET, false);
+
+                // Whatever turns up by the end of the fallback is final, so that a photo without EXIF
+                // is remembered as such rather than read again
+                if (_meta == null) {
+                    long header = _metadataBytes;
+                    _meta = readMetadata(FALLBACK_READ_BUDGET, true);
+                    Printer.debug("No EXIF in the header of '%s': read %d bytes, then %d more",
+                            inputPath.getFileName(), header, _metadataBytes - header);
+                }
+
+                if (_meta != null)
+                    ParsedMetadataCache.put(inputPath, getAttributes(), _meta);
             } catch (ImageProcessingException | IOException e) {
                 PhotoNamer.alertError(e);
             }
@@ -79,12 +130,125 @@ public class PhotoWrapper implements BasicFileAttributes, Serializable {
         return _meta;
     }
 
+    public long getMetadataBytesRead() {
+        return _metadataBytes;
+    }
+
+    // Returns null if the budget ran out before the EXIF directory was found, unless this is the last attempt
+    private Metadata readMetadata(long budget, boolean last) throws ImageProcessingException, IOException {
+        try (ChannelInputStream in = ChannelInputStream.open(this.inputPath, budget)) {
+            Metadata meta;
+            try {
+                meta = ImageMetadataReader.readMetadata(in, in.size());
+            } catch (ImageProcessingException | IOException e) {
+                if (in.isExhausted()) return last ? new Metadata() : null;
+                throw e;
+            } finally {
+                _metadataBytes += in.getBytesRead();
+                Printer.debug("Read %d bytes of metadata from '%s'", in.getBytesRead(), inputPath.getFileName());
+            }
+
+            if (!last && in.isExhausted() && meta.getFirstDirectoryOfType(ExifSubIFDDirectory.class) == null)
+                return null;
+
+            return meta;
+        }
+    }
+
+    public MetadataCache.Entry getCachedMetadata() {
+        // Lazy init to increase performance when loading a full directory
+        if (_cached == null) {
+            MetadataCache cache = MetadataCache.getDefault();
+            _cached = cache.get(inputPath, getAttributes()).orElse(null);
+
+            if (_cached == null) {
+                Date taken;
+                Optional<GeoLocation> location;
+
+                // Most photos only need a couple of tags, which can be read without parsing everything else
+                Optional<ExifFastReader.Result> fast = ExifFastReader.read(inputPath);
+                if (fast.isPresent()) {
+                    taken = fast.get().getTaken().orElse(null);
+                    location = fast.get().getLocation().filter(l -> !l.isZero());
+                    _metadataBytes += fast.get().getBytesRead();
+
+                    if (VERIFY_FAST_EXIF) verifyFastRead(taken, location);
+                } else {
+                    taken = readTaken();
+                    location = readLocation();
+                }
+
+                _cached = MetadataCache.Entry.of(getAttributes(), taken == null ? null : taken.toInstant(),
+                        location.map(GeoLocation::getLatitude).orElse(null),
+                        location.map(GeoLocation::getLongitude).orElse(null));
+
+                // Don't remember metadata which couldn't be read this time round
+                if (fast.isPresent() || _meta != null) cache.put(inputPath, _cached);
+            }
+        }
+
+        return _cached;
+    }
+
+    private void verifyFastRead(Date taken, Optional<GeoLocation> location) {
+        Date fullTaken = readTaken();
+        Optional<GeoLocation> fullLocation = readLocation();
+
+        if (!Objects.equals(taken, fullTaken) || !location.equals(fullLocation)) {
+            Printer.log("Fast EXIF read of '%s' differs: %s %s, expected %s %s",
+                    inputPath, taken, location, fullTaken, fullLocation);
+        }
+    }
+
+    private Date readTaken() {
+        ExifSubIFDDirectory dir = getExifDirectory();
+        return dir == null ? null : dir.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
+    }
+
+    public Optional<GeoLocation> getLocation() {
+        MetadataCache.Entry cached = getCachedMetadata();
+        return cached.hasLocation()
+                ? Optional.of(new GeoLocation(cached.getLatitude(), cached.getLongitude()))
+                : Optional.empty();
+    }
+
+    private Optional<GeoLocation> readLocation() {
+        Metadata meta = getMetadata();
+        if (meta == null) return Optional.empty();
+
+        GpsDirectory gps = meta.getFirstDirectoryOfType(GpsDirectory.class);
+        GeoLocation location = gps == null ? null : gps.getGeoLocation();
+
+        // Some cameras write 0,0 rather than leaving the position out
+        return location == null || location.isZero() ? Optional.empty() : Optional.of(location);
+    }
+
+    public Optional<Gazetteer.Place> getPlace() {
+        // Lazy init to increase performance when loading a full directory
+        if (_place == null) {
+            _place = getLocation().flatMap(location -> Gazetteer.getDefault()
+                    .flatMap(gazetteer -> gazetteer.lookup(location.getLatitude(), location.getLongitude())));
+        }
+
+        return _place;
+    }
+
     public ExifSubIFDDirectory getExifDirectory() {
         if (getMetadata() == null) return null;
 
         // Lazy init to increase performance when loading a full directory
-        if (_exifDir == null)
-            _exifDir = _meta.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        if (_exifDir == null) {
+            // Raw files can have several EXIF sub-IFDs, of which only one holds the taken date
+            for (ExifSubIFDDirectory dir : _meta.getDirectoriesOfType(ExifSubIFDDirectory.class)) {
+                if (dir.containsTag(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL)) {
+                    _exifDir = dir;
+                    break;
+                }
+            }
+
+            if (_exifDir == null)
+                _exifDir = _meta.getFirstDirectoryOfType(ExifSubIFDDirectory.class);
+        }
 
         return _exifDir;
     }
@@ -94,63 +258,154 @@ public class PhotoWrapper implements BasicFileAttributes, Serializable {
 
         // Know what extension type we are dealing with
         Pair<String, String> fileName = Formatting.getFilenameComponents(file.toString());
-        String target = format.getFormat();
         String ext = fileName.getValue();
 
-        // If grouping is enabled, apply to target path
-        if (format.getGrouping().isPresent()) {
-            target = format.getGrouping().get().getVariable() + File.separator + target;
-        }
-
-        for (Map.Entry<NamerFormat.Var, NamerFormatCondition> entry : NamerFormat.getVariables().entrySet()) {
-            target = target.replaceAll("\\$" + entry.getKey().getName(),
-                    String.valueOf(entry.getValue().replace(id, this)));
-        }
+        // The template already includes the group folder if grouping is enabled
+        String target = format.getTemplate().render(id, this);
 
         return Pair.of(target, ext);
     }
 
     public Path applyFormat(NamerFormat format, Path outputDir, int id) throws NamerProcessException {
+        return applyFormat(format, outputDir, id, new TargetRegistry());
+    }
+
+    public Path applyFormat(NamerFormat format, Path outputDir, int id,
+                            TargetRegistry registry) throws NamerProcessException {
         // Generate new file name based on formatting config
-        Pair<String, String> components = format(format, id);
-        String friendly = components.getKey();
-        String ext = components.getValue();
+        return move(format(format, id), outputDir, registry);
+    }
+
+    public Path move(Pair<String, String> components, Path outputDir,
+                     TargetRegistry registry) throws NamerProcessException {
+        return move(components, outputDir, registry, List.of()).get(inputPath);
+    }
+
+    // Moves the photo along with its companions, all under the same new name. Returns every source and its target.
+    public Map<Path, Path> move(Pair<String, String> components, Path outputDir,
+                                TargetRegistry registry, List<Path> companions) throws NamerProcessException {
+        return move(components, outputDir, registry, companions, targets -> () -> {});
+    }
+
+    /*
+     * Same as above. The listener is told about each attempt right before anything is moved, and hands
+     * back what to do once the whole set has been. It is left out if the files already have their names.
+     */
+    public Map<Path, Path> move(Pair<String, String> components, Path outputDir, TargetRegistry registry,
+                                List<Path> companions, Function<Map<Path, Path>, Runnable> listener)
+            throws NamerProcessException {
+        return move(claim(components, outputDir, registry, companions),
+                components, outputDir, registry, companions, listener);
+    }
 
-        // Detect conflicting file names and prevent overwriting
-        String conflictName = friendly;
-        int conflictNo = 0;
+    /*
+     * Same as above, trying names claimed beforehand first. Fresh ones are claimed should something
+     * outside the process have taken them in the meantime.
+     */
+    public Map<Path, Path> move(TargetRegistry.Claim claimed, Pair<String, String> components, Path outputDir,
+                                TargetRegistry registry, List<Path> companions,
+                                Function<Map<Path, Path>, Runnable> listener) throws NamerProcessException {
+        // The registry hands out a name nobody else has, including other workers. Only files that
+        // appeared from outside since the output folder was listed can still get in the way.
+        TargetRegistry.Claim claim = claimed;
         while (true) {
-            try {
+            if (claim == null) claim = claim(components, outputDir, registry, companions);
 
-                if (conflictNo != 0) {
-                    conflictName = friendly + " (" + conflictNo + ")";
-                } else {
-                    // For grouped images, ensure that group folder exists first of all.
-                    // If the conflict number is 0, then there is no guarantee that it exists.
-                    int separator = conflictName.indexOf(File.separatorChar);
-                    if (separator != -1) {
-                        String group = conflictName.substring(0, separator);
-                        Path groupFolder = outputDir.resolve(group);
-
-                        // Attempt to create directory if it doesn't exist
-                        if (!Files.exists(groupFolder))
-                            Files.createDirectory(groupFolder);
-                    }
+            Map<Path, Path> targets = targets(claim, companions);
+
+            boolean unchanged = true;
+            for (Map.Entry<Path, Path> move : targets.entrySet())
+                if (!move.getKey().equals(move.getValue()))
+                    unchanged = false;
+
+            Runnable moved = unchanged ? () -> {} : listener.apply(targets);
+
+            List<Path> done = new ArrayList<>();
+            try {
+                // The set is moved as a whole, or not at all
+                for (Map.Entry<Path, Path> move : targets.entrySet()) {
+                    Files.move(move.getKey(), move.getValue());
+                    done.add(move.getKey());
                 }
 
-                Path target = Files.move(inputPath, outputDir.resolve(conflictName + "." + ext));
+                // The moved file is still the same file as far as the metadata cache is concerned
+                if (_cached != null) MetadataCache.getDefault().put(targets.get(inputPath), _cached);
+                moved.run();
 
                 // success (no error)
-                return target;
+                return targets;
             } catch (FileAlreadyExistsException exists) {
-                Printer.debug("'%s' already exists. Retrying with a new name...", conflictName + "." + ext);
-                conflictNo++;
+                Printer.debug("'%s' already exists. Retrying with a new name...", exists.getFile());
+                rollback(targets, done);
+                claim.collided();
+                claim = null;
             } catch (IOException ex) {
+                rollback(targets, done);
+                claim.release();
                 throw new NamerProcessException(ex);
             }
         }
     }
 
+    // Claims the names the photo and its companions are to be moved to, without moving anything yet
+    public TargetRegistry.Claim claim(Pair<String, String> components, Path outputDir,
+                                      TargetRegistry registry, List<Path> companions) throws NamerProcessException {
+        List<Path> sources = new ArrayList<>(companions.size() + 1);
+        sources.add(inputPath);
+        sources.addAll(companions);
+
+        try {
+            return registry.claim(outputDir, components.getKey(), tails(components, companions), sources);
+        } catch (IOException ex) {
+            throw new NamerProcessException(ex);
+        }
+    }
+
+    // Works out where the photo and its companions would go, without moving anything
+    public Map<Path, Path> plan(Pair<String, String> components, Path outputDir,
+                                TargetRegistry registry, List<Path> companions) throws NamerProcessException {
+        try {
+            return targets(registry.claim(outputDir, components.getKey(), tails(components, companions)), companions);
+        } catch (IOException ex) {
+            throw new NamerProcessException(ex);
+        }
+    }
+
+    private List<String> tails(Pair<String, String> components, List<Path> companions) {
+        // Companions keep whatever follows the shared stem, such as ".xmp" or ".CR2.xmp"
+        String stem = Formatting.getFilenameComponents(inputPath.getFileName().toString()).getKey();
+        List<String> tails = new ArrayList<>(companions.size() + 1);
+        tails.add("." + components.getValue());
+        for (Path companion : companions) {
+            String name = companion.getFileName().toString();
+            Validate.isTrue(name.startsWith(stem), "'%s' does not belong with '%s'", name, inputPath.getFileName());
+            tails.add(name.substring(stem.length()));
+        }
+
+        return tails;
+    }
+
+    // Where the photo and its companions go under the claimed names
+    public Map<Path, Path> targets(TargetRegistry.Claim claim, List<Path> companions) {
+        Map<Path, Path> targets = new LinkedHashMap<>();
+        targets.put(inputPath, claim.getTargets().get(0));
+        for (int i = 0; i < companions.size(); i++)
+            targets.put(companions.get(i), claim.getTargets().get(i + 1));
+
+        return targets;
+    }
+
+    private static void rollback(Map<Path, Path> targets, List<Path> done) {
+        for (int i = done.size() - 1; i >= 0; i--) {
+            Path source = done.get(i);
+            try {
+                Files.move(targets.get(source), source);
+            } catch (IOException e) {
+                Printer.debug("Could not move '%s' back to '%s': %s", targets.get(source), source, e.toString());
+            }
+        }
+    }
+
     public BasicFileAttributes getAttributes() {
         // Lazy init to increase performance when loading a full directory
         if (_attributes == null) {
@@ -209,26 +464,57 @@ public class PhotoWrapper implements BasicFileAttributes, Serializable {
         return getAttributes().fileKey();
     }
 
+    public void loadContentHashes(Set<ContentHash> hashes) {
+        // Only read the file for the hashes which haven't been computed yet
+        Set<ContentHash> missing = EnumSet.noneOf(ContentHash.class);
+        for (ContentHash hash : hashes)
+            if (!_hashes.containsKey(hash))
+                missing.add(hash);
+
+        if (missing.isEmpty()) return;
+
+        try {
+            _hashes.putAll(ContentHash.compute(inputPath, missing));
+        } catch (IOException e) {
+            // A file that can't be read can't be named after its contents either
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String getContentHash(ContentHash hash) {
+        loadContentHashes(EnumSet.of(hash));
+        return _hashes.get(hash);
+    }
+
+    public PhotoTimes getTimes() {
+        // Lazy init to increase performance when loading a full directory
+        if (_times == null)
+            _times = PhotoTimes.of(getAttributes());
+
+        return _times;
+    }
+
     public int createdAt(ChronoField unit) {
-        return fromMillis(creationTime().toMillis(), unit);
+        return getTimes().getCreated().get(unit);
     }
 
     public int modifiedAt(ChronoField unit) {
-        return fromMillis(lastModifiedTime().toMillis(), unit);
+        return getTimes().getModified().get(unit);
     }
 
     public Optional<Integer> takenAt(ChronoField unit) {
-        // Lazy init to increase performance when loading a full directory
-        ExifSubIFDDirectory dir = getExifDirectory();
-        if (dir == null) return Optional.empty();
-
-        Date date = dir.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
-        if (date == null) return Optional.empty();
+        return resolveTaken().getTaken().map(taken -> taken.get(unit));
+    }
 
-        return Optional.of(fromMillis(date.getTime(), unit));
+    public int takenOrCreatedAt(ChronoField unit) {
+        return resolveTaken().getTakenOrCreated().get(unit);
     }
 
-    private static int fromMillis(long millis, ChronoField unit) {
-        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).get(unit);
+    private PhotoTimes resolveTaken() {
+        PhotoTimes times = getTimes();
+        if (times.isTakenResolved()) return times;
+
+        // Lazy init to increase performance when loading a full directory
+        return _times = times.withTaken(getCachedMetadata().getTaken().orElse(null));
     }
 }
\ No newline at end of file
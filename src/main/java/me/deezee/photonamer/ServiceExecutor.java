@@ -9,14 +9,39 @@ package me.deezee.photonamer;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import me.deezee.photonamer.process.NamerStage;
+import org.apache.commons.lang3.Validate;
 
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
 
 public final class ServiceExecutor {
 
-    // Will never be shut down as it will be reused
-    private static final ListeningExecutorService executor = newAsyncExecutor();
+    // Reused until the application shuts down. Grows as needed, so that independent processes run side by side
+    private static final ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+            Executors.newCachedThreadPool(newThreadFactory("namer-process")));
+
+    // Kept apart so that previews never queue up behind a long running rename
+    private static final ListeningExecutorService previewExecutor = newAsyncExecutor("namer-preview");
+
+    // Runs small periodic chores, such as writing out the undo journal
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            newThreadFactory("namer-scheduler"));
+
+    // Executor groups handed out to processes which have not been closed yet
+    private static final Set<ExecutorGroup> groups = ConcurrentHashMap.newKeySet();
 
     private ServiceExecutor() {}
 
@@ -24,6 +49,14 @@ public final class ServiceExecutor {
         return executor;
     }
 
+    public static ListeningExecutorService getPreviewExecutor() {
+        return previewExecutor;
+    }
+
+    public static ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
     public static ListeningExecutorService newAsyncExecutor() {
         return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(1));
     }
@@ -33,6 +66,101 @@ public final class ServiceExecutor {
     }
 
     public static ListeningExecutorService newAsyncExecutor(String name) {
-        return newAsyncExecutor(new ThreadFactoryBuilder().setNameFormat(name + "-%d").build());
+        return newAsyncExecutor(newThreadFactory(name));
+    }
+
+    public static ListeningExecutorService newAsyncExecutor(String name, int threads) {
+        return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads, newThreadFactory(name)));
+    }
+
+    public static ListeningExecutorService newWorkStealingExecutor(String name, int parallelism) {
+        return MoreExecutors.listeningDecorator(newForkJoinPool(name, parallelism));
+    }
+
+    public static ForkJoinPool newForkJoinPool(String name, int parallelism) {
+        return new ForkJoinPool(parallelism, newWorkerFactory(name), null, false);
+    }
+
+    // Workers blocked through ForkJoinPool.managedBlock are stood in for by spare threads, up to the given total
+    public static ForkJoinPool newForkJoinPool(String name, int parallelism, int maxThreads) {
+        Validate.isTrue(maxThreads >= parallelism, "Thread limit cannot be below parallelism");
+
+        // Past the limit, a worker that blocks simply does so without a stand-in
+        return new ForkJoinPool(parallelism, newWorkerFactory(name), null, false,
+                0, maxThreads, 1, pool -> true, 60, TimeUnit.SECONDS);
+    }
+
+    public static ExecutorGroup newExecutorGroup(ExecutorStrategy strategy, ToIntFunction<NamerStage> budget) {
+        Validate.notNull(strategy, "Executor strategy cannot be null");
+        Validate.notNull(budget, "Stage thread budget cannot be null");
+
+        Map<NamerStage, ExecutorService> executors = new EnumMap<>(NamerStage.class);
+
+        // The walk runs on the calling thread, or on the walker's own pool, so it never needs a thread from here
+        Set<NamerStage> pooled = EnumSet.complementOf(EnumSet.of(NamerStage.WALK));
+
+        if (strategy == ExecutorStrategy.CPU_IO_SPLIT) {
+            // Stage workers never give their thread back until the stage ends,
+            // so each shared pool has to fit the budget of every stage it runs
+            int io = 0;
+            int cpu = 0;
+            for (NamerStage stage : pooled) {
+                if (stage.isIOBound())  io += budget.applyAsInt(stage);
+                else                    cpu += budget.applyAsInt(stage);
+            }
+
+            ExecutorService ioPool = newAsyncExecutor("namer-io", Math.max(io, 1));
+            ExecutorService cpuPool = newAsyncExecutor("namer-cpu", Math.max(cpu, 1));
+            for (NamerStage stage : pooled)
+                executors.put(stage, stage.isIOBound() ? ioPool : cpuPool);
+        } else {
+            for (NamerStage stage : pooled) {
+                String name = "namer-" + stage.name().toLowerCase();
+                int threads = strategy.getThreads(budget.applyAsInt(stage));
+
+                executors.put(stage, strategy == ExecutorStrategy.WORK_STEALING
+                        ? newWorkStealingExecutor(name, threads)
+                        : newAsyncExecutor(name, threads));
+            }
+        }
+
+        ExecutorGroup group = new ExecutorGroup(strategy, executors);
+        groups.add(group);
+        return group;
+    }
+
+    public static void shutdown() {
+        // Stop anything that is still running, then give it a moment to wind down
+        groups.forEach(ExecutorGroup::shutdownNow);
+        executor.shutdownNow();
+        previewExecutor.shutdownNow();
+
+        // Whatever is still scheduled, such as a last journal commit, is let through
+        scheduler.shutdown();
+
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+            previewExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void release(ExecutorGroup group) {
+        groups.remove(group);
+    }
+
+    private static ForkJoinPool.ForkJoinWorkerThreadFactory newWorkerFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + "-" + count.getAndIncrement());
+            return thread;
+        };
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        return new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build();
     }
-}
\ No newline at end of file
+}
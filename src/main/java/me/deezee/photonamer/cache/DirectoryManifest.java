@@ -0,0 +1,295 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.cache;
+
+import com.google.common.hash.Hashing;
+import me.deezee.photonamer.util.Printer;
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the state of every directory that a run went through, so that the
+ * next run over the same source directory can skip the ones which have not
+ * changed since.
+ *
+ * <p>A directory is recognised as unchanged by its modification time, size and
+ * file key, which cost a single stat.  Its sub directories are remembered as
+ * well, so that an unchanged directory doesn't even have to be listed to carry
+ * on walking below it.  Only a change to the settings that decide which files
+ * get renamed, and how, throws the whole manifest away.</p>
+ */
+public final class DirectoryManifest {
+
+    public static final Path DEFAULT_DIRECTORY = Path.of(System.getProperty("photonamer.manifests",
+            System.getProperty("user.home") + "/.photonamer/manifests"));
+
+    private static final int MAGIC = 0x504E4D46; // "PNMF"
+    private static final int VERSION = 1;
+
+    // File systems with whole second times (FAT, HFS+, some network shares) can change a directory
+    // again within the same second, which its time alone wouldn't show
+    private static final long COARSE_MARGIN_MICROS = TimeUnit.SECONDS.toMicros(2);
+
+    private final Path root;
+    private final String fingerprint;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    private DirectoryManifest(Path root, String fingerprint) {
+        this.root = root;
+        this.fingerprint = fingerprint;
+    }
+
+    public static DirectoryManifest create(Path root, String fingerprint) {
+        Validate.notNull(root, "Root directory cannot be null");
+        Validate.notNull(fingerprint, "Settings fingerprint cannot be null");
+
+        return new DirectoryManifest(key(root), fingerprint);
+    }
+
+    // Loads what the last run over the same directory left behind, or nothing if it used other settings
+    public static DirectoryManifest load(Path root, String fingerprint) {
+        DirectoryManifest manifest = create(root, fingerprint);
+        Path file = manifest.getFile();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Printer.debug("Ignoring directory manifest '%s' of an unknown format", file);
+                return manifest;
+            }
+
+            if (!in.readUTF().equals(manifest.root.toString()) || !in.readUTF().equals(fingerprint)) {
+                Printer.debug("Settings changed since the last run, so every directory is walked again");
+                return manifest;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Path dir = Path.of(in.readUTF());
+                long size = in.readLong();
+                long modified = in.readLong();
+                String fileKey = in.readUTF();
+                int children = in.readInt();
+
+                int names = in.readInt();
+                List<String> directories = new ArrayList<>(names);
+                for (int d = 0; d < names; d++)
+                    directories.add(in.readUTF());
+
+                manifest.entries.put(dir, new Entry(size, modified, fileKey, children, directories));
+            }
+
+            Printer.debug("Loaded %d unchanged directories from '%s'", count, file);
+        } catch (NoSuchFileException firstRun) {
+            // Nothing to skip yet
+        } catch (IOException e) {
+            Printer.log("Could not read directory manifest '%s': %s", file, e.getMessage());
+            manifest.entries.clear();
+        }
+
+        return manifest;
+    }
+
+    // Only returns an entry if the directory looks exactly as it did when it was listed
+    public Optional<Entry> get(Path dir, BasicFileAttributes attributes) {
+        Entry entry = entries.get(key(dir));
+        return entry != null && entry.matches(attributes) ? Optional.of(entry) : Optional.empty();
+    }
+
+    public void put(Path dir, BasicFileAttributes attributes, int children, List<String> directories) {
+        Validate.notNull(attributes, "Directory attributes cannot be null");
+        entries.put(key(dir), Entry.of(attributes, children, directories));
+    }
+
+    public void keep(Path dir, Entry entry) {
+        entries.put(key(dir), Validate.notNull(entry, "Manifest entry cannot be null"));
+    }
+
+    /*
+     * Catches up with the renames of the run that just ended, given how many entries each
+     * directory gained (or lost, if negative) from them. A directory whose entries no longer
+     * add up was also changed by something else, so it is forgotten and walked again next time.
+     */
+    public int refresh(Map<Path, Integer> moves) {
+        Validate.notNull(moves, "Moves cannot be null");
+
+        for (Map.Entry<Path, Entry> known : entries.entrySet()) {
+            Path dir = known.getKey();
+            Entry entry = known.getValue();
+
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+                if (entry.matches(attributes)) continue;
+
+                Integer moved = moves.get(dir);
+                if (moved != null && count(dir) == entry.children + moved) {
+                    known.setValue(new Entry(attributes.size(), modifiedOf(attributes), fileKeyOf(attributes),
+                            entry.children + moved, entry.directories));
+                    continue;
+                }
+            } catch (IOException e) {
+                Printer.debug("Forgetting directory '%s': %s", dir, e.toString());
+            }
+
+            entries.remove(dir);
+        }
+
+        return entries.size();
+    }
+
+    public void save() {
+        Path file = getFile();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long now = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+
+            int written = 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(root.toString());
+                out.writeUTF(fingerprint);
+
+                List<Map.Entry<Path, Entry>> trusted = new ArrayList<>(entries.size());
+                for (Map.Entry<Path, Entry> entry : entries.entrySet())
+                    if (!entry.getValue().isRacy(now))
+                        trusted.add(entry);
+
+                out.writeInt(trusted.size());
+                for (Map.Entry<Path, Entry> entry : trusted) {
+                    Entry dir = entry.getValue();
+                    out.writeUTF(entry.getKey().toString());
+                    out.writeLong(dir.size);
+                    out.writeLong(dir.modified);
+                    out.writeUTF(dir.fileKey);
+                    out.writeInt(dir.children);
+                    out.writeInt(dir.directories.size());
+                    for (String name : dir.directories)
+                        out.writeUTF(name);
+                }
+
+                written = trusted.size();
+            }
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Printer.debug("Saved %d of %d directories to '%s'", written, entries.size(), file);
+        } catch (IOException e) {
+            Printer.log("Could not write directory manifest '%s': %s", file, e.getMessage());
+        }
+    }
+
+    // Forgets the last run over the directory, so that the next one walks everything
+    public static void discard(Path root) {
+        Path file = fileFor(key(root));
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Printer.log("Could not delete directory manifest '%s': %s", file, e.getMessage());
+        }
+    }
+
+    private static int count(Path dir) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path ignored : children) count++;
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+
+        return count;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Path getFile() {
+        return fileFor(root);
+    }
+
+    private static Path fileFor(Path root) {
+        // One manifest per source directory
+        String name = Hashing.sha256().hashString(root.toString(), StandardCharsets.UTF_8).toString();
+        return DEFAULT_DIRECTORY.resolve(name.substring(0, 32) + ".manifest");
+    }
+
+    private static Path key(Path dir) {
+        return dir.toAbsolutePath().normalize();
+    }
+
+    private static long modifiedOf(BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+    }
+
+    private static String fileKeyOf(BasicFileAttributes attributes) {
+        // Not every file system has file keys
+        Object fileKey = attributes.fileKey();
+        return fileKey == null ? "" : fileKey.toString();
+    }
+
+    public static final class Entry {
+
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+        private final int children;
+        private final List<String> directories;
+
+        private Entry(long size, long modified, String fileKey, int children, List<String> directories) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.children = children;
+            this.directories = List.copyOf(directories);
+        }
+
+        public static Entry of(BasicFileAttributes attributes, int children, List<String> directories) {
+            return new Entry(attributes.size(), modifiedOf(attributes), fileKeyOf(attributes),
+                    children, directories);
+        }
+
+        // Number of entries the directory had when it was listed
+        public int getChildren() {
+            return children;
+        }
+
+        // Names of the sub directories to carry on walking into
+        public List<String> getDirectories() {
+            return directories;
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size()
+                    && modified == modifiedOf(attributes)
+                    && fileKey.equals(fileKeyOf(attributes));
+        }
+
+        private boolean isRacy(long now) {
+            return modified % 1_000_000 == 0 && now - modified < COARSE_MARGIN_MICROS;
+        }
+    }
+}
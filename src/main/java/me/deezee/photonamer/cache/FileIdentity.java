@@ -0,0 +1,56 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.cache;
+
+import org.apache.commons.lang3.Validate;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+// Identifies the contents of a file for as long as it isn't modified, even across renames
+public final class FileIdentity {
+
+    private final Object key;
+    private final long size;
+    private final long modified;
+
+    private FileIdentity(Object key, long size, long modified) {
+        this.key = key;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    public static FileIdentity of(Path file, BasicFileAttributes attributes) {
+        Validate.notNull(file, "File cannot be null");
+        Validate.notNull(attributes, "File attributes cannot be null");
+
+        // Not every file system has file keys, in which case the path has to do
+        Object key = attributes.fileKey() != null ? attributes.fileKey() : file.toAbsolutePath().normalize();
+        return new FileIdentity(key, attributes.size(), attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FileIdentity)) return false;
+
+        FileIdentity other = (FileIdentity) o;
+        return size == other.size && modified == other.modified && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, size, modified);
+    }
+
+    @Override
+    public String toString() {
+        return key + " (" + size + " bytes, modified " + modified + ")";
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.cache;
+
+import me.deezee.photonamer.util.Printer;
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent cache of the metadata extracted from photos, so that running
+ * over the same library again only costs a stat per file.
+ *
+ * <p>Entries are appended to a single file as they are extracted, and the
+ * whole file is read back into an in-memory index the first time the cache is
+ * used.  An entry only counts while the size, modification time and file key
+ * of the photo are still the same as when it was extracted.</p>
+ */
+public final class MetadataCache {
+
+    public static final Path DEFAULT_PATH = Path.of(System.getProperty("photonamer.cache",
+            System.getProperty("user.home") + "/.photonamer/metadata.cache"));
+
+    private static final int MAGIC = 0x504E4D43; // "PNMC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    // Rewrite the file on load once most of it is made up of stale entries
+    private static final int COMPACT_MIN_RECORDS = 4096;
+
+    private static volatile MetadataCache defaultCache;
+
+    private final Path file;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private DataOutputStream out;
+
+    private MetadataCache(Path file) {
+        this.file = file;
+    }
+
+    public static MetadataCache open(Path file) {
+        Validate.notNull(file, "Cache file cannot be null");
+
+        MetadataCache cache = new MetadataCache(file);
+        try {
+            int records = cache.load();
+            if (records >= COMPACT_MIN_RECORDS && records > 2 * cache.entries.size())
+                cache.compact();
+
+            cache.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)));
+            if (Files.size(file) == 0) cache.writeHeader(cache.out);
+        } catch (IOException e) {
+            // Still works for this session, only without remembering anything for the next one
+            Printer.log("Could not open metadata cache '%s': %s", file, e.getMessage());
+            cache.out = null;
+        }
+
+        return cache;
+    }
+
+    public static MetadataCache getDefault() {
+        if (defaultCache == null) {
+            synchronized (MetadataCache.class) {
+                if (defaultCache == null)
+                    defaultCache = open(DEFAULT_PATH);
+            }
+        }
+
+        return defaultCache;
+    }
+
+    public static synchronized void closeDefault() {
+        if (defaultCache != null) {
+            defaultCache.close();
+            defaultCache = null;
+        }
+    }
+
+    public Optional<Entry> get(Path photo, BasicFileAttributes attributes) {
+        Entry entry = entries.get(key(photo));
+
+        if (entry == null || attributes == null || !entry.matches(attributes)) {
+            misses.increment();
+            return Optional.empty();
+        }
+
+        hits.increment();
+        return Optional.of(entry);
+    }
+
+    public void put(Path photo, Entry entry) {
+        Validate.notNull(entry, "Cache entry cannot be null");
+
+        Path key = key(photo);
+        entries.put(key, entry);
+        append(key, entry);
+    }
+
+    // Renaming keeps size, modification time and file key, so the entry can simply move along
+    public void moved(Path from, Path to) {
+        Entry entry = entries.get(key(from));
+        if (entry != null) put(to, entry);
+    }
+
+    public synchronized void flush() {
+        if (out == null) return;
+
+        try {
+            out.flush();
+        } catch (IOException e) {
+            Printer.log("Could not write metadata cache '%s': %s", file, e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+
+            out = null;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private synchronized void append(Path key, Entry entry) {
+        if (out == null) return;
+
+        try {
+            write(out, key, entry);
+        } catch (IOException e) {
+            Printer.log("Could not write metadata cache '%s': %s", file, e.getMessage());
+            close();
+        }
+    }
+
+    private int load() throws IOException {
+        if (!Files.exists(file)) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            return 0;
+        }
+
+        int records = 0;
+        long valid = HEADER_SIZE;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Printer.log("Discarding metadata cache '%s' of an unknown format", file);
+                Files.delete(file);
+                return 0;
+            }
+
+            while (true) {
+                String path = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readLong(), in.readUTF(),
+                        in.readLong(), in.readDouble(), in.readDouble());
+
+                entries.put(Path.of(path), entry);
+                records++;
+
+                valid += 2 + utfLength(path) + 8 + 8 + 2 + utfLength(entry.fileKey) + 8 + 8 + 8;
+            }
+        } catch (EOFException endOfCache) {
+            // Expected once every record has been read
+        }
+
+        // A record cut short by a crash would otherwise break every record appended after it
+        if (valid < Files.size(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+
+        Printer.debug("Loaded %d cached photos from '%s'", entries.size(), file);
+        return records;
+    }
+
+    private void compact() throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            writeHeader(compacted);
+            for (Map.Entry<Path, Entry> entry : entries.entrySet())
+                write(compacted, entry.getKey(), entry.getValue());
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Printer.debug("Compacted metadata cache '%s' to %d photos", file, entries.size());
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    private static void write(DataOutputStream out, Path key, Entry entry) throws IOException {
+        out.writeUTF(key.toString());
+        out.writeLong(entry.size);
+        out.writeLong(entry.modified);
+        out.writeUTF(entry.fileKey);
+        out.writeLong(entry.taken);
+        out.writeDouble(entry.latitude);
+        out.writeDouble(entry.longitude);
+    }
+
+    private static int utfLength(String value) {
+        // Same modified UTF-8 length as DataOutputStream.writeUTF
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F)     length += 1;
+            else if (c > 0x07FF)                length += 3;
+            else                                length += 2;
+        }
+
+        return length;
+    }
+
+    private static Path key(Path photo) {
+        return photo.toAbsolutePath().normalize();
+    }
+
+    private static long modifiedOf(BasicFileAttributes attributes) {
+        return attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+    }
+
+    private static String fileKeyOf(BasicFileAttributes attributes) {
+        // Not every file system has file keys
+        Object fileKey = attributes.fileKey();
+        return fileKey == null ? "" : fileKey.toString();
+    }
+
+    public static final class Entry {
+
+        private static final long NO_TAKEN = Long.MIN_VALUE;
+
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+
+        private final long taken;
+        private final double latitude;
+        private final double longitude;
+
+        private Entry(long size, long modified, String fileKey, long taken, double latitude, double longitude) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.taken = taken;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public static Entry of(BasicFileAttributes attributes, Instant taken, Double latitude, Double longitude) {
+            Validate.notNull(attributes, "File attributes cannot be null");
+
+            return new Entry(attributes.size(), modifiedOf(attributes), fileKeyOf(attributes),
+                    taken == null ? NO_TAKEN : taken.toEpochMilli(),
+                    latitude == null ? Double.NaN : latitude,
+                    longitude == null ? Double.NaN : longitude);
+        }
+
+        public Optional<Instant> getTaken() {
+            return taken == NO_TAKEN ? Optional.empty() : Optional.of(Instant.ofEpochMilli(taken));
+        }
+
+        public boolean hasLocation() {
+            return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size()
+                    && modified == modifiedOf(attributes)
+                    && Objects.equals(fileKey, fileKeyOf(attributes));
+        }
+    }
+}
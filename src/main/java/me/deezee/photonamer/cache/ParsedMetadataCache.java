@@ -0,0 +1,73 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.cache;
+
+import com.drew.metadata.Directory;
+import com.drew.metadata.Metadata;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.apache.commons.lang3.Validate;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+
+/**
+ * Process wide cache of parsed photo metadata, shared by the preview, renames
+ * and undos of a session.
+ *
+ * <p>Photos are identified by their file key where the file system has one,
+ * so that a photo which has just been renamed is still recognised.  The cache
+ * is bounded by the total number of metadata tags it holds and evicts the
+ * least recently used photos first.</p>
+ */
+public final class ParsedMetadataCache {
+
+    // Roughly 100 bytes per tag, so about 50MB by default
+    private static final long MAX_TAGS = Long.getLong("photonamer.metadata.maxTags", 500_000);
+
+    private static final Cache<FileIdentity, Metadata> cache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_TAGS)
+            .weigher((FileIdentity identity, Metadata meta) -> weigh(meta))
+            .recordStats()
+            .build();
+
+    private ParsedMetadataCache() {}
+
+    public static Optional<Metadata> get(Path photo, BasicFileAttributes attributes) {
+        if (attributes == null) return Optional.empty();
+        return Optional.ofNullable(cache.getIfPresent(FileIdentity.of(photo, attributes)));
+    }
+
+    public static void put(Path photo, BasicFileAttributes attributes, Metadata meta) {
+        Validate.notNull(meta, "Metadata cannot be null");
+        if (attributes == null) return;
+
+        cache.put(FileIdentity.of(photo, attributes), meta);
+    }
+
+    public static CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public static long size() {
+        return cache.size();
+    }
+
+    public static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static int weigh(Metadata meta) {
+        int tags = 1;
+        for (Directory directory : meta.getDirectories())
+            tags += directory.getTagCount();
+
+        return tags;
+    }
+}
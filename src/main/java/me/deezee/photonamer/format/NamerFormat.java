@@ -7,25 +7,36 @@
 package me.deezee.photonamer.format;
 
 import com.google.common.collect.ImmutableMap;
+import me.deezee.photonamer.geo.Gazetteer;
 import me.deezee.photonamer.process.NamerProcessException;
+import me.deezee.photonamer.util.ContentHash;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.Validate;
 
+import java.io.File;
 import java.nio.file.Path;
 import java.text.DateFormatSymbols;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.temporal.ChronoField;
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.time.temporal.ChronoField.*;
 
 public class NamerFormat {
 
-    public static final String[] DEFAULT_ALLOWED_EXTS = {"jpg", "jpeg", "gif", "png", "bmp"};
+    public static final String[] DEFAULT_ALLOWED_EXTS = {"jpg", "jpeg", "gif", "png", "bmp", "heic", "heif", "mp4", "mov",
+                                                          "cr2", "cr3", "nef", "arw", "dng", "orf", "rw2", "raf"};
+
+    // Preferred to name a set of files after, when a shot was saved in several formats
+    public static final String[] RAW_EXTS = {"cr2", "cr3", "nef", "arw", "dng", "orf", "rw2", "raf"};
+
+    // Never renamed on their own, only along with the photo they belong to
+    public static final String[] SIDECAR_EXTS = {"xmp", "aae", "thm"};
+
+    // Used for photos without a location, or when no gazetteer has been set up
+    public static final String UNKNOWN_PLACE = "Unknown";
 
     private static final ImmutableMap<Var, NamerFormatCondition> VARS = new ImmutableMap.Builder<Var, NamerFormatCondition>()
             // ID of item being renamed within the process
@@ -60,25 +71,35 @@ public class NamerFormat {
             .put(Var.M_AMPM_LO,     (id, attr) -> attr.modifiedAt(AMPM_OF_DAY) == 0 ? "am" : "pm")
 
             // Image taken date
-            .put(Var.T_YEAR,        (id, attr) -> attr.takenAt(YEAR).orElse(attr.createdAt(YEAR)))
-            .put(Var.T_MONTH_ID_A,  (id, attr) -> academicMonthId(attr.takenAt(MONTH_OF_YEAR).orElse(attr.createdAt(MONTH_OF_YEAR))))
-            .put(Var.T_MONTH_ID,    (id, attr) -> attr.takenAt(MONTH_OF_YEAR).orElse(attr.createdAt(MONTH_OF_YEAR)))
-            .put(Var.T_MONTH,       (id, attr) -> month(attr.takenAt(MONTH_OF_YEAR).orElse(attr.createdAt(MONTH_OF_YEAR))))
-            .put(Var.T_DAY,         (id, attr) -> attr.takenAt(DAY_OF_MONTH).orElse(attr.createdAt(DAY_OF_MONTH)))
-            .put(Var.T_HOUR_AMPM,   (id, attr) -> attr.takenAt(HOUR_OF_AMPM).orElse(attr.createdAt(HOUR_OF_AMPM)))
-            .put(Var.T_HOUR,        (id, attr) -> attr.takenAt(HOUR_OF_DAY).orElse(attr.createdAt(HOUR_OF_DAY)))
-            .put(Var.T_MINUTE,      (id, attr) -> attr.takenAt(MINUTE_OF_HOUR).orElse(attr.createdAt(MINUTE_OF_HOUR)))
-            .put(Var.T_SECOND,      (id, attr) -> attr.takenAt(SECOND_OF_MINUTE).orElse(attr.createdAt(SECOND_OF_MINUTE)))
-            .put(Var.T_MILLI,       (id, attr) -> attr.takenAt(MILLI_OF_SECOND).orElse(attr.createdAt(MILLI_OF_SECOND)))
-            .put(Var.T_AMPM_HI,     (id, attr) -> attr.takenAt(AMPM_OF_DAY).orElse(attr.createdAt(AMPM_OF_DAY)) == 0 ? "AM" : "PM")
-            .put(Var.T_AMPM_LO,     (id, attr) -> attr.takenAt(AMPM_OF_DAY).orElse(attr.createdAt(AMPM_OF_DAY)) == 0 ? "am" : "pm")
-
-            // TODO: Image taken location
+            .put(Var.T_YEAR,        (id, attr) -> attr.takenOrCreatedAt(YEAR))
+            .put(Var.T_MONTH_ID_A,  (id, attr) -> academicMonthId(attr.takenOrCreatedAt(MONTH_OF_YEAR)))
+            .put(Var.T_MONTH_ID,    (id, attr) -> attr.takenOrCreatedAt(MONTH_OF_YEAR))
+            .put(Var.T_MONTH,       (id, attr) -> month(attr.takenOrCreatedAt(MONTH_OF_YEAR)))
+            .put(Var.T_DAY,         (id, attr) -> attr.takenOrCreatedAt(DAY_OF_MONTH))
+            .put(Var.T_HOUR_AMPM,   (id, attr) -> attr.takenOrCreatedAt(HOUR_OF_AMPM))
+            .put(Var.T_HOUR,        (id, attr) -> attr.takenOrCreatedAt(HOUR_OF_DAY))
+            .put(Var.T_MINUTE,      (id, attr) -> attr.takenOrCreatedAt(MINUTE_OF_HOUR))
+            .put(Var.T_SECOND,      (id, attr) -> attr.takenOrCreatedAt(SECOND_OF_MINUTE))
+            .put(Var.T_MILLI,       (id, attr) -> attr.takenOrCreatedAt(MILLI_OF_SECOND))
+            .put(Var.T_AMPM_HI,     (id, attr) -> attr.takenOrCreatedAt(AMPM_OF_DAY) == 0 ? "AM" : "PM")
+            .put(Var.T_AMPM_LO,     (id, attr) -> attr.takenOrCreatedAt(AMPM_OF_DAY) == 0 ? "am" : "pm")
+
+            // File contents
+            .put(Var.SHA256,        (id, attr) -> attr.getContentHash(ContentHash.SHA256))
+            .put(Var.XXH64,         (id, attr) -> attr.getContentHash(ContentHash.XXH64))
+
+            // Image taken location
+            .put(Var.CITY,          (id, attr) -> attr.getPlace().map(Gazetteer.Place::getCity).orElse(UNKNOWN_PLACE))
+            .put(Var.COUNTRY,       (id, attr) -> attr.getPlace().map(Gazetteer.Place::getCountry).orElse(UNKNOWN_PLACE))
 
             .build();
 
+    // Month names for each locale in use, rather than building the symbols for every photo
+    private static final Map<Locale, String[]> MONTHS = new ConcurrentHashMap<>();
+
     private final String format;
     private Var groupBy;
+    private NamerTemplate template;
 
     public NamerFormat(String name, Var groupBy) throws NamerProcessException {
         this.format = Validate.notNull(name, "File formatting cannot be null.");
@@ -102,18 +123,21 @@ public class NamerFormat {
                     +  "'. Available variables: " + Arrays.toString(Var.availableGroupings()));
 
         this.groupBy = groupBy;
+
+        // If grouping is enabled, the group folder becomes part of the target path
+        this.template = NamerTemplate.compile(groupBy == null ? format : groupBy.getVariable() + File.separator + format);
     }
 
     public Optional<Var> getGrouping() {
         return Optional.ofNullable(groupBy);
     }
 
-    public static Map<Var, NamerFormatCondition> getVariables() {
-        return VARS;
+    public NamerTemplate getTemplate() {
+        return template;
     }
 
-    private static int fromMillis(long millis, ChronoField unit) {
-        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).get(unit);
+    public static Map<Var, NamerFormatCondition> getVariables() {
+        return VARS;
     }
 
     private static int academicMonthId(int monthId) {
@@ -122,61 +146,72 @@ public class NamerFormat {
     }
 
     private static String month(int monthId) {
-        return new DateFormatSymbols().getMonths()[monthId - 1];
+        return MONTHS.computeIfAbsent(Locale.getDefault(Locale.Category.FORMAT),
+                locale -> DateFormatSymbols.getInstance(locale).getMonths())[monthId - 1];
     }
 
     public enum Var {
         // Misc
-        ID            ("seq_id",    "The sequential ID of the photo."),
+        ID            ("seq_id",    "The sequential ID of the photo.",                         DataSource.NONE),
 
         // Photo creation date
-        C_YEAR        ("c_year",    "File creation year."),
-        C_MONTH_ID_A  ("c_mon_id2", "File creation academic month ID of year"),
-        C_MONTH_ID    ("c_mon_id",  "File creation month ID of year."),
-        C_MONTH       ("c_mon",     "File creation month of year"),
-        C_DAY         ("c_day",     "File creation day of month."),
-        C_HOUR_AMPM   ("c_hour2",   "File creation hour of day (in AM/PM format)."),
-        C_HOUR        ("c_hour",    "File creation hour of day (in 24-hour format)."),
-        C_MINUTE      ("c_min",     "File creation minute of hour."),
-        C_SECOND      ("c_sec",     "File creation second of minute."),
-        C_MILLI       ("c_mil",     "File creation millisecond of second."),
-        C_AMPM_HI     ("c_AMPM",    "File creation \"AM\" or \"PM\"."),
-        C_AMPM_LO     ("c_ampm",    "File creation \"am\" or \"pm\"."),
+        C_YEAR        ("c_year",    "File creation year.",                                     DataSource.ATTRIBUTES),
+        C_MONTH_ID_A  ("c_mon_id2", "File creation academic month ID of year",                 DataSource.ATTRIBUTES),
+        C_MONTH_ID    ("c_mon_id",  "File creation month ID of year.",                         DataSource.ATTRIBUTES),
+        C_MONTH       ("c_mon",     "File creation month of year",                             DataSource.ATTRIBUTES),
+        C_DAY         ("c_day",     "File creation day of month.",                             DataSource.ATTRIBUTES),
+        C_HOUR_AMPM   ("c_hour2",   "File creation hour of day (in AM/PM format).",            DataSource.ATTRIBUTES),
+        C_HOUR        ("c_hour",    "File creation hour of day (in 24-hour format).",          DataSource.ATTRIBUTES),
+        C_MINUTE      ("c_min",     "File creation minute of hour.",                           DataSource.ATTRIBUTES),
+        C_SECOND      ("c_sec",     "File creation second of minute.",                         DataSource.ATTRIBUTES),
+        C_MILLI       ("c_mil",     "File creation millisecond of second.",                    DataSource.ATTRIBUTES),
+        C_AMPM_HI     ("c_AMPM",    "File creation \"AM\" or \"PM\".",                         DataSource.ATTRIBUTES),
+        C_AMPM_LO     ("c_ampm",    "File creation \"am\" or \"pm\".",                         DataSource.ATTRIBUTES),
 
         // Photo modification date
-        M_YEAR        ("m_year",    "File last modification year."),
-        M_MONTH_ID_A  ("m_mon_id2", "File last modification academic month ID of year"),
-        M_MONTH_ID    ("m_mon_id",  "File last modification month ID of year."),
-        M_MONTH       ("m_mon",     "File last modification month of year"),
-        M_DAY         ("m_day",     "File last modification day of month."),
-        M_HOUR_AMPM   ("m_hour2",   "File last modification hour of day (in AM/PM format)."),
-        M_HOUR        ("m_hour",    "File last modification hour of day (in 24-hour format)."),
-        M_MINUTE      ("m_min",     "File last modification minute of hour."),
-        M_SECOND      ("m_sec",     "File last modification second of minute."),
-        M_MILLI       ("m_mil",     "File last modification millisecond of second."),
-        M_AMPM_HI     ("m_AMPM",    "File last modification \"AM\" or \"PM\"."),
-        M_AMPM_LO     ("m_ampm",    "File last modification \"am\" or \"pm\"."),
+        M_YEAR        ("m_year",    "File last modification year.",                            DataSource.ATTRIBUTES),
+        M_MONTH_ID_A  ("m_mon_id2", "File last modification academic month ID of year",        DataSource.ATTRIBUTES),
+        M_MONTH_ID    ("m_mon_id",  "File last modification month ID of year.",                DataSource.ATTRIBUTES),
+        M_MONTH       ("m_mon",     "File last modification month of year",                    DataSource.ATTRIBUTES),
+        M_DAY         ("m_day",     "File last modification day of month.",                    DataSource.ATTRIBUTES),
+        M_HOUR_AMPM   ("m_hour2",   "File last modification hour of day (in AM/PM format).",   DataSource.ATTRIBUTES),
+        M_HOUR        ("m_hour",    "File last modification hour of day (in 24-hour format).", DataSource.ATTRIBUTES),
+        M_MINUTE      ("m_min",     "File last modification minute of hour.",                  DataSource.ATTRIBUTES),
+        M_SECOND      ("m_sec",     "File last modification second of minute.",                DataSource.ATTRIBUTES),
+        M_MILLI       ("m_mil",     "File last modification millisecond of second.",           DataSource.ATTRIBUTES),
+        M_AMPM_HI     ("m_AMPM",    "File last modification \"AM\" or \"PM\".",                DataSource.ATTRIBUTES),
+        M_AMPM_LO     ("m_ampm",    "File last modification \"am\" or \"pm\".",                DataSource.ATTRIBUTES),
 
         // Photo taken date
-        T_YEAR        ("t_year",    "Photo taken year."),
-        T_MONTH_ID_A  ("t_mon_id2", "Photo taken academic month ID of year"),
-        T_MONTH_ID    ("t_mon_id",  "Photo taken month ID of year."),
-        T_MONTH       ("t_mon",     "Photo taken month of year"),
-        T_DAY         ("t_day",     "Photo taken day of month."),
-        T_HOUR_AMPM   ("t_hour2",   "Photo taken hour of day (in AM/PM format)."),
-        T_HOUR        ("t_hour",    "Photo taken hour of day (in 24-hour format)."),
-        T_MINUTE      ("t_min",     "Photo taken minute of hour."),
-        T_SECOND      ("t_sec",     "Photo taken second of minute."),
-        T_MILLI       ("t_mil",     "Photo taken millisecond of second."),
-        T_AMPM_HI     ("t_AMPM",    "Photo taken \"AM\" or \"PM\"."),
-        T_AMPM_LO     ("t_ampm",    "Photo taken \"am\" or \"pm\".");
+        T_YEAR        ("t_year",    "Photo taken year.",                                       DataSource.EXIF),
+        T_MONTH_ID_A  ("t_mon_id2", "Photo taken academic month ID of year",                   DataSource.EXIF),
+        T_MONTH_ID    ("t_mon_id",  "Photo taken month ID of year.",                           DataSource.EXIF),
+        T_MONTH       ("t_mon",     "Photo taken month of year",                               DataSource.EXIF),
+        T_DAY         ("t_day",     "Photo taken day of month.",                               DataSource.EXIF),
+        T_HOUR_AMPM   ("t_hour2",   "Photo taken hour of day (in AM/PM format).",              DataSource.EXIF),
+        T_HOUR        ("t_hour",    "Photo taken hour of day (in 24-hour format).",            DataSource.EXIF),
+        T_MINUTE      ("t_min",     "Photo taken minute of hour.",                             DataSource.EXIF),
+        T_SECOND      ("t_sec",     "Photo taken second of minute.",                           DataSource.EXIF),
+        T_MILLI       ("t_mil",     "Photo taken millisecond of second.",                      DataSource.EXIF),
+        T_AMPM_HI     ("t_AMPM",    "Photo taken \"AM\" or \"PM\".",                           DataSource.EXIF),
+        T_AMPM_LO     ("t_ampm",    "Photo taken \"am\" or \"pm\".",                           DataSource.EXIF),
+
+        // File contents
+        SHA256        ("sha256",    "SHA-256 hash of the file contents.",                      DataSource.CONTENT),
+        XXH64         ("xxh64",     "Fast 64-bit xxHash of the file contents.",                DataSource.CONTENT),
+
+        // Photo taken location
+        CITY          ("city",      "Nearest city to where the photo was taken.",              DataSource.EXIF),
+        COUNTRY       ("country",   "Country where the photo was taken.",                      DataSource.EXIF);
 
         private final String name;
         private final String description;
+        private final DataSource source;
 
-        Var(String name, String description) {
+        Var(String name, String description, DataSource source) {
             this.name = name;
             this.description = description;
+            this.source = source;
         }
 
         public String getName() {
@@ -191,6 +226,10 @@ public class NamerFormat {
             return description;
         }
 
+        public DataSource getDataSource() {
+            return source;
+        }
+
         @Override
         public String toString() {
             return getName();
@@ -199,7 +238,23 @@ public class NamerFormat {
         public static Var[] availableGroupings() {
             return new Var[] {  null,   C_YEAR, C_MONTH,    C_MONTH_ID, C_MONTH_ID_A,
                                         M_YEAR, M_MONTH,    M_MONTH_ID, M_MONTH_ID_A,
-                                        T_YEAR, T_MONTH,    T_MONTH_ID, T_MONTH_ID_A};
+                                        T_YEAR, T_MONTH,    T_MONTH_ID, T_MONTH_ID_A,
+                                        COUNTRY, CITY};
         }
     }
+
+    public enum DataSource {
+
+        // Known without touching the file
+        NONE,
+
+        // Needs a single stat of the file
+        ATTRIBUTES,
+
+        // Needs the photo metadata to be parsed
+        EXIF,
+
+        // Needs the whole file to be read
+        CONTENT
+    }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.format;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import me.deezee.photonamer.PhotoWrapper;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+public final class NamerTemplate {
+
+    private static final Map<String, NamerFormat.Var> NAMES;
+    private static final int MAX_NAME_LENGTH;
+
+    static {
+        ImmutableMap.Builder<String, NamerFormat.Var> names = ImmutableMap.builder();
+        int max = 0;
+        for (NamerFormat.Var var : NamerFormat.Var.values()) {
+            names.put(var.getName(), var);
+            max = Math.max(max, var.getName().length());
+        }
+
+        NAMES = names.build();
+        MAX_NAME_LENGTH = max;
+    }
+
+    private final String source;
+    private final ImmutableList<Segment> segments;
+    private final Set<NamerFormat.Var> variables;
+    private final int literalLength;
+
+    private NamerTemplate(String source, ImmutableList<Segment> segments, Set<NamerFormat.Var> variables) {
+        this.source = source;
+        this.segments = segments;
+        this.variables = Collections.unmodifiableSet(variables);
+        this.literalLength = segments.stream()
+                .filter(segment -> segment.var == null)
+                .mapToInt(segment -> segment.literal.length())
+                .sum();
+    }
+
+    public static NamerTemplate compile(String format) {
+        Validate.notNull(format, "Template format cannot be null");
+
+        ImmutableList.Builder<Segment> segments = ImmutableList.builder();
+        Set<NamerFormat.Var> variables = EnumSet.noneOf(NamerFormat.Var.class);
+        StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < format.length()) {
+            char c = format.charAt(i);
+            NamerFormat.Var var = c == '$' ? longestMatch(format, i + 1) : null;
+
+            // Anything that isn't a known variable stays as it is, including a lone '$'
+            if (var == null) {
+                literal.append(c);
+                i++;
+                continue;
+            }
+
+            if (literal.length() > 0) {
+                segments.add(new Segment(literal.toString(), null, null));
+                literal.setLength(0);
+            }
+
+            segments.add(new Segment(null, var, NamerFormat.getVariables().get(var)));
+            variables.add(var);
+            i += 1 + var.getName().length();
+        }
+
+        if (literal.length() > 0)
+            segments.add(new Segment(literal.toString(), null, null));
+
+        return new NamerTemplate(format, segments.build(), variables);
+    }
+
+    public String render(int id, PhotoWrapper photo) {
+        StringBuilder out = new StringBuilder(literalLength + 8 * variables.size());
+        for (Segment segment : segments) {
+            if (segment.var == null)    out.append(segment.literal);
+            else                        out.append(segment.condition.replace(id, photo));
+        }
+
+        return out.toString();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public Set<NamerFormat.Var> getVariables() {
+        return variables;
+    }
+
+    public Set<NamerFormat.DataSource> getDataSources() {
+        Set<NamerFormat.DataSource> sources = EnumSet.noneOf(NamerFormat.DataSource.class);
+        for (NamerFormat.Var var : variables)
+            sources.add(var.getDataSource());
+
+        return sources;
+    }
+
+    public boolean uses(NamerFormat.Var... vars) {
+        return Arrays.stream(vars).anyMatch(variables::contains);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static NamerFormat.Var longestMatch(String format, int start) {
+        // Names like $c_mon and $c_mon_id share a prefix, so the longest one that fits wins
+        int end = Math.min(format.length(), start + MAX_NAME_LENGTH);
+        for (int i = end; i > start; i--) {
+            NamerFormat.Var var = NAMES.get(format.substring(start, i));
+            if (var != null) return var;
+        }
+
+        return null;
+    }
+
+    private static final class Segment {
+
+        private final String literal;
+        private final NamerFormat.Var var;
+        private final NamerFormatCondition condition;
+
+        private Segment(String literal, NamerFormat.Var var, NamerFormatCondition condition) {
+            this.literal = literal;
+            this.var = var;
+            this.condition = condition;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.geo;
+
+import me.deezee.photonamer.util.Printer;
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Offline reverse geocoder backed by a pre-built, memory-mapped k-d tree of
+ * populated places.
+ *
+ * <p>The index is built once from a GeoNames dump (e.g. {@code cities1000.txt})
+ * using {@link #build(Path, Path)}.  Places are stored as fixed-size records in
+ * the order of an implicit k-d tree, so that a lookup only touches the mapped
+ * file and a handful of records, without loading anything onto the heap.</p>
+ *
+ * @see <a href="https://download.geonames.org/export/dump/">GeoNames dumps</a>
+ */
+public final class Gazetteer {
+
+    public static final Path DEFAULT_PATH = Path.of(System.getProperty("photonamer.gazetteer",
+            System.getProperty("user.home") + "/.photonamer/gazetteer.idx"));
+
+    private static final int MAGIC = 0x504E475A; // "PNGZ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    // latitude (float), longitude (float), city offset (int), country offset (int)
+    private static final int RECORD_SIZE = 16;
+
+    // Places further away than this are not considered to be where the photo was taken (~100km)
+    private static final double MAX_DISTANCE_DEG = 0.9;
+
+    private static volatile Optional<Gazetteer> defaultGazetteer;
+
+    private final ByteBuffer index;
+    private final int count;
+    private final int pool;
+
+    private Gazetteer(ByteBuffer index) throws IOException {
+        if (index.capacity() < HEADER_SIZE || index.getInt(0) != MAGIC)
+            throw new IOException("Not a gazetteer index");
+        if (index.getInt(4) != VERSION)
+            throw new IOException("Unsupported gazetteer index version " + index.getInt(4));
+
+        this.index = index;
+        this.count = index.getInt(8);
+        this.pool = index.getInt(12);
+    }
+
+    public static Gazetteer open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel has been closed
+            return new Gazetteer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static Optional<Gazetteer> getDefault() {
+        if (defaultGazetteer == null) {
+            synchronized (Gazetteer.class) {
+                if (defaultGazetteer == null)
+                    defaultGazetteer = Files.exists(DEFAULT_PATH) ? tryOpen(DEFAULT_PATH) : Optional.empty();
+            }
+        }
+
+        return defaultGazetteer;
+    }
+
+    public static synchronized void reloadDefault() {
+        defaultGazetteer = null;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public Optional<Place> lookup(double latitude, double longitude) {
+        if (count == 0) return Optional.empty();
+
+        // Compare distances on an equirectangular projection around the photo's latitude
+        Search search = new Search(latitude, longitude, Math.cos(Math.toRadians(latitude)));
+        search.visit(0, count, 0);
+
+        if (search.best < 0 || search.bestDistance > MAX_DISTANCE_DEG * MAX_DISTANCE_DEG)
+            return Optional.empty();
+
+        int record = HEADER_SIZE + search.best * RECORD_SIZE;
+        return Optional.of(new Place(
+                string(index.getInt(record + 8)), string(index.getInt(record + 12)),
+                index.getFloat(record), index.getFloat(record + 4)));
+    }
+
+    public static void build(Path geoNames, Path target) throws IOException {
+        Validate.notNull(geoNames, "GeoNames source cannot be null");
+        Validate.notNull(target, "Gazetteer target cannot be null");
+
+        List<float[]> coords = new ArrayList<>();
+        List<String> cities = new ArrayList<>();
+        List<String> countries = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(geoNames, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split("\t", -1);
+                if (cols.length < 9) continue;
+
+                try {
+                    coords.add(new float[] {Float.parseFloat(cols[4]), Float.parseFloat(cols[5])});
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                cities.add(cols[1]);
+                countries.add(countryName(cols[8]));
+            }
+        }
+
+        int n = coords.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        arrange(order, coords, 0, n, 0);
+
+        // Every distinct name is only stored once
+        Map<String, Integer> offsets = new HashMap<>();
+        ByteBuffer records = ByteBuffer.allocate(n * RECORD_SIZE);
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
+
+        for (int i : order) {
+            records.putFloat(coords.get(i)[0]);
+            records.putFloat(coords.get(i)[1]);
+            records.putInt(intern(cities.get(i), offsets, stringsOut));
+            records.putInt(intern(countries.get(i), offsets, stringsOut));
+        }
+
+        Files.createDirectories(target.toAbsolutePath().getParent());
+
+        // Write next to the target first, so that a half written index never replaces a good one
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(n);
+            data.writeInt(HEADER_SIZE + n * RECORD_SIZE);
+            data.write(records.array());
+            strings.writeTo(data);
+            data.flush();
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Printer.log("Built gazetteer of %d places at '%s'", n, target);
+    }
+
+    private String string(int offset) {
+        int at = pool + offset;
+        int length = index.getShort(at) & 0xFFFF;
+
+        byte[] bytes = new byte[length];
+        index.get(at + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Optional<Gazetteer> tryOpen(Path file) {
+        try {
+            return Optional.of(open(file));
+        } catch (IOException e) {
+            Printer.log("Could not open gazetteer '%s': %s", file, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private static void arrange(Integer[] order, List<float[]> coords, int from, int to, int depth) {
+        if (to - from < 2) return;
+
+        // Split on latitude and longitude in turns, with the median becoming the node
+        int dim = depth % 2;
+        Arrays.sort(order, from, to, Comparator.comparingDouble(i -> coords.get(i)[dim]));
+
+        int mid = (from + to) >>> 1;
+        arrange(order, coords, from, mid, depth + 1);
+        arrange(order, coords, mid + 1, to, depth + 1);
+    }
+
+    private static int intern(String value, Map<String, Integer> offsets, DataOutputStream out) throws IOException {
+        Integer offset = offsets.get(value);
+        if (offset != null) return offset;
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) bytes = Arrays.copyOf(bytes, 0xFFFF);
+
+        offset = out.size();
+        out.writeShort(bytes.length);
+        out.write(bytes);
+
+        offsets.put(value, offset);
+        return offset;
+    }
+
+    private static String countryName(String code) {
+        String name = new Locale("", code).getDisplayCountry(Locale.ENGLISH);
+        return name.isEmpty() ? code : name;
+    }
+
+    private final class Search {
+
+        private final double lat;
+        private final double lon;
+        private final double lonScale;
+
+        private int best = -1;
+        private double bestDistance = Double.MAX_VALUE;
+
+        private Search(double lat, double lon, double lonScale) {
+            this.lat = lat;
+            this.lon = lon;
+            this.lonScale = lonScale;
+        }
+
+        private void visit(int from, int to, int depth) {
+            if (from >= to) return;
+
+            int mid = (from + to) >>> 1;
+            int record = HEADER_SIZE + mid * RECORD_SIZE;
+            double dLat = lat - index.getFloat(record);
+            double dLon = (lon - index.getFloat(record + 4)) * lonScale;
+
+            double distance = dLat * dLat + dLon * dLon;
+            if (distance < bestDistance) {
+                best = mid;
+                bestDistance = distance;
+            }
+
+            // Descend into the side of the splitting plane the photo is on first
+            double split = depth % 2 == 0 ? dLat : dLon;
+            if (split < 0) {
+                visit(from, mid, depth + 1);
+                if (split * split < bestDistance) visit(mid + 1, to, depth + 1);
+            } else {
+                visit(mid + 1, to, depth + 1);
+                if (split * split < bestDistance) visit(from, mid, depth + 1);
+            }
+        }
+    }
+
+    public static final class Place {
+
+        private final String city;
+        private final String country;
+        private final float latitude;
+        private final float longitude;
+
+        private Place(String city, String country, float latitude, float longitude) {
+            this.city = city;
+            this.country = country;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+
+        public String getCity() {
+            return city;
+        }
+
+        public String getCountry() {
+            return country;
+        }
+
+        public float getLatitude() {
+            return latitude;
+        }
+
+        public float getLongitude() {
+            return longitude;
+        }
+
+        @Override
+        public String toString() {
+            return city + ", " + country;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.meta;
+
+import com.drew.lang.GeoLocation;
+import com.drew.lang.Rational;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.GpsDirectory;
+import me.deezee.photonamer.meta.FileWindow.Unsupported;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Optional;
+
+import static me.deezee.photonamer.meta.FileWindow.UNSUPPORTED;
+
+/**
+ * Reads only the taken date and GPS position of a JPEG or TIFF based RAW
+ * (CR2, NEF, ARW, DNG, ORF) file, by following IFD0 to the EXIF and GPS IFDs.
+ * HEIC and MP4/MOV files are handed to {@link IsoBmffReader}.
+ *
+ * <p>Nothing else in the file is parsed.  Values are handed to the same
+ * metadata-extractor directories that a full read would produce them in, so
+ * that they are interpreted identically.  Whenever the file isn't laid out
+ * as expected, no result is returned and the full reader should be used.</p>
+ */
+public final class ExifFastReader {
+
+    // Headers and IFDs are small, so reading a bit at a time keeps the bytes read down
+    private static final int CHUNK_SIZE = 4 * 1024;
+
+    // The EXIF segment comes first in practice, but some cameras put large segments in front of it
+    private static final long MAX_JPEG_SCAN = 1024 * 1024;
+
+    private static final int MAX_IFD_ENTRIES = 1024;
+    private static final int MAX_STRING_LENGTH = 256;
+
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_IFD = 13;
+
+    // One read buffer per worker thread
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(CHUNK_SIZE));
+
+    private ExifFastReader() {}
+
+    public static Optional<Result> read(Path file) {
+        Validate.notNull(file, "File cannot be null");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileWindow window = new FileWindow(channel, BUFFER.get(), CHUNK_SIZE);
+
+            int start = window.u16(0);
+            if (start == 0xFFD8)                    return Optional.of(readJpeg(window));
+            if (start == 0x4949 || start == 0x4D4D) return Optional.of(readTiff(window, 0));
+            if (IsoBmffReader.isIsoBmff(window))    return Optional.of(IsoBmffReader.read(window));
+
+            return Optional.empty();
+        } catch (Unsupported | IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Result readJpeg(FileWindow window) throws IOException, Unsupported {
+        long pos = 2;
+        while (pos < MAX_JPEG_SCAN) {
+            if (window.u8(pos) != 0xFF) throw UNSUPPORTED;
+
+            int marker = window.u8(pos + 1);
+            if (marker == 0xFF) {
+                // Fill byte
+                pos++;
+                continue;
+            }
+
+            // Image data starts without an EXIF segment having come up
+            if (marker == 0xDA || marker == 0xD9) throw UNSUPPORTED;
+
+            // Markers without a length
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                pos += 2;
+                continue;
+            }
+
+            int length = window.u16(pos + 2);
+            if (marker == 0xE1 && length >= 14 && isExifHeader(window, pos + 4))
+                return readTiff(window, pos + 10);
+
+            pos += 2 + length;
+        }
+
+        throw UNSUPPORTED;
+    }
+
+    private static boolean isExifHeader(FileWindow window, long pos) throws IOException, Unsupported {
+        return window.u8(pos) == 'E' && window.u8(pos + 1) == 'x' && window.u8(pos + 2) == 'i'
+                && window.u8(pos + 3) == 'f' && window.u8(pos + 4) == 0 && window.u8(pos + 5) == 0;
+    }
+
+    static Result readTiff(FileWindow window, long base) throws IOException, Unsupported {
+        window.order = ByteOrder.BIG_ENDIAN;
+        int byteOrder = window.u16(base);
+        if (byteOrder == 0x4949)        window.order = ByteOrder.LITTLE_ENDIAN;
+        else if (byteOrder != 0x4D4D)   throw UNSUPPORTED;
+
+        // Plain TIFF, or one of the two Olympus RAW variants
+        int magic = window.u16(base + 2);
+        if (magic != 0x2A && magic != 0x4F52 && magic != 0x5352) throw UNSUPPORTED;
+
+        long ifd0 = base + window.u32(base + 4);
+        long exifIfd = -1;
+        long gpsIfd = -1;
+
+        int entries = entryCount(window, ifd0);
+        for (int i = 0; i < entries; i++) {
+            long entry = ifd0 + 2 + 12L * i;
+            int tag = window.u16(entry);
+
+            if (tag == TAG_EXIF_IFD)        exifIfd = base + pointer(window, entry);
+            else if (tag == TAG_GPS_IFD)    gpsIfd = base + pointer(window, entry);
+        }
+
+        // Files without an EXIF IFD may still keep a date somewhere the full reader knows about
+        if (exifIfd < 0) throw UNSUPPORTED;
+
+        String original = null;
+        entries = entryCount(window, exifIfd);
+        for (int i = 0; i < entries && original == null; i++) {
+            long entry = exifIfd + 2 + 12L * i;
+            if (window.u16(entry) == ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL)
+                original = string(window, base, entry);
+        }
+
+        Date taken = null;
+        if (original != null) {
+            ExifSubIFDDirectory dir = new ExifSubIFDDirectory();
+            dir.setString(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL, original);
+            taken = dir.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
+        }
+
+        GeoLocation location = gpsIfd < 0 ? null : readGps(window, base, gpsIfd);
+        return new Result(taken, location, window.getBytesRead());
+    }
+
+    private static GeoLocation readGps(FileWindow window, long base, long ifd) throws IOException, Unsupported {
+        GpsDirectory gps = new GpsDirectory();
+
+        int entries = entryCount(window, ifd);
+        for (int i = 0; i < entries; i++) {
+            long entry = ifd + 2 + 12L * i;
+            int tag = window.u16(entry);
+
+            switch (tag) {
+                case GpsDirectory.TAG_LATITUDE_REF:
+                case GpsDirectory.TAG_LONGITUDE_REF:
+                    gps.setString(tag, string(window, base, entry));
+                    break;
+                case GpsDirectory.TAG_LATITUDE:
+                case GpsDirectory.TAG_LONGITUDE:
+                    gps.setRationalArray(tag, rationals(window, base, entry));
+                    break;
+            }
+        }
+
+        return gps.getGeoLocation();
+    }
+
+    private static int entryCount(FileWindow window, long ifd) throws IOException, Unsupported {
+        int entries = window.u16(ifd);
+        if (entries > MAX_IFD_ENTRIES) throw UNSUPPORTED;
+        return entries;
+    }
+
+    private static long pointer(FileWindow window, long entry) throws IOException, Unsupported {
+        int type = window.u16(entry + 2);
+        if (type != TYPE_LONG && type != TYPE_IFD) throw UNSUPPORTED;
+        return window.u32(entry + 8);
+    }
+
+    private static String string(FileWindow window, long base, long entry) throws IOException, Unsupported {
+        if (window.u16(entry + 2) != TYPE_ASCII) throw UNSUPPORTED;
+
+        long count = window.u32(entry + 4);
+        if (count > MAX_STRING_LENGTH) throw UNSUPPORTED;
+
+        // Values of up to 4 bytes are stored in the entry itself
+        long pos = count <= 4 ? entry + 8 : base + window.u32(entry + 8);
+        return window.ascii(pos, (int) count);
+    }
+
+    private static Rational[] rationals(FileWindow window, long base, long entry) throws IOException, Unsupported {
+        if (window.u16(entry + 2) != TYPE_RATIONAL) throw UNSUPPORTED;
+
+        long count = window.u32(entry + 4);
+        if (count > MAX_STRING_LENGTH) throw UNSUPPORTED;
+
+        long pos = base + window.u32(entry + 8);
+        Rational[] values = new Rational[(int) count];
+        for (int i = 0; i < count; i++)
+            values[i] = new Rational(window.u32(pos + 8L * i), window.u32(pos + 8L * i + 4));
+
+        return values;
+    }
+
+    public static final class Result {
+
+        private final Date taken;
+        private final GeoLocation location;
+        private final long bytesRead;
+
+        Result(Date taken, GeoLocation location, long bytesRead) {
+            this.taken = taken;
+            this.location = location;
+            this.bytesRead = bytesRead;
+        }
+
+        public Optional<Date> getTaken() {
+            return Optional.ofNullable(taken);
+        }
+
+        public Optional<GeoLocation> getLocation() {
+            return Optional.ofNullable(location);
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+    }
+}
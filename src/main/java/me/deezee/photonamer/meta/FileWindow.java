@@ -0,0 +1,113 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.meta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Reads a file a small chunk at a time, positioned at whatever offset is needed next
+final class FileWindow {
+
+    // Thrown for any layout the fast readers don't handle. Shared, since it never leaves this package
+    static final Unsupported UNSUPPORTED = new Unsupported();
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int chunk;
+    private final long size;
+
+    ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+    private long start = -1;
+    private int length;
+    private long bytesRead;
+
+    FileWindow(FileChannel channel, ByteBuffer buffer, int chunk) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.chunk = Math.min(chunk, buffer.capacity());
+        this.size = channel.size();
+    }
+
+    long size() {
+        return size;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    int u8(long pos) throws IOException, Unsupported {
+        return buffer.get(at(pos, 1)) & 0xFF;
+    }
+
+    int u16(long pos) throws IOException, Unsupported {
+        int at = at(pos, 2);
+        return buffer.order(order).getShort(at) & 0xFFFF;
+    }
+
+    long u32(long pos) throws IOException, Unsupported {
+        int at = at(pos, 4);
+        return buffer.order(order).getInt(at) & 0xFFFFFFFFL;
+    }
+
+    long u64(long pos) throws IOException, Unsupported {
+        int at = at(pos, 8);
+        long value = buffer.order(order).getLong(at);
+        if (value < 0) throw UNSUPPORTED;
+        return value;
+    }
+
+    // Unsigned integer of 0, 4 or 8 bytes, as used for variable sized fields
+    long uint(long pos, int bytes) throws IOException, Unsupported {
+        switch (bytes) {
+            case 0: return 0;
+            case 4: return u32(pos);
+            case 8: return u64(pos);
+            default: throw UNSUPPORTED;
+        }
+    }
+
+    String ascii(long pos, int count) throws IOException, Unsupported {
+        int at = at(pos, count);
+
+        // Strings end at the first null, if there is one before the declared length
+        int length = 0;
+        while (length < count && buffer.get(at + length) != 0) length++;
+
+        byte[] bytes = new byte[length];
+        buffer.get(at, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private int at(long pos, int count) throws IOException, Unsupported {
+        if (pos < 0 || count > chunk || pos + count > size) throw UNSUPPORTED;
+
+        if (start < 0 || pos < start || pos + count > start + length) {
+            buffer.clear().limit(chunk);
+            while (buffer.position() < count) {
+                if (channel.read(buffer, pos + buffer.position()) < 0) throw UNSUPPORTED;
+            }
+
+            start = pos;
+            length = buffer.position();
+            bytesRead += length;
+        }
+
+        return (int) (pos - start);
+    }
+
+    static final class Unsupported extends Exception {
+
+        private Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.meta;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import me.deezee.photonamer.cache.FileIdentity;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+
+// Kind of image a file holds, told apart by the signature at the start of its contents
+public enum ImageType {
+
+    JPEG,
+    PNG,
+    GIF,
+    BMP,
+    WEBP,
+
+    // Also covers most RAW formats, such as CR2, NEF, ARW, DNG, ORF and RW2
+    TIFF,
+
+    // ISO base media files: HEIC/HEIF, AVIF and Canon's CR3
+    HEIF,
+
+    // Any other ISO base media file, such as MP4 and MOV
+    MOVIE,
+
+    UNKNOWN;
+
+    // Every signature fits within this many bytes
+    public static final int SIGNATURE_LENGTH = 32;
+
+    private static final Set<String> HEIF_BRANDS = Set.of(
+            "heic", "heix", "heim", "heis", "hevc", "hevx", "mif1", "msf1", "avif", "avis", "crx ");
+
+    // One buffer per thread, since sniffing happens on every worker
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(SIGNATURE_LENGTH));
+
+    private static final Cache<FileIdentity, ImageType> cache = CacheBuilder.newBuilder()
+            .maximumSize(Long.getLong("photonamer.sniff.maxFiles", 200_000))
+            .build();
+
+    public boolean isImage() {
+        return this != UNKNOWN;
+    }
+
+    // Sniffs each file only once for as long as it isn't modified
+    public static ImageType of(Path file, BasicFileAttributes attributes) throws IOException {
+        Validate.notNull(file, "File cannot be null");
+        if (attributes == null) return sniff(file);
+
+        FileIdentity identity = FileIdentity.of(file, attributes);
+        ImageType type = cache.getIfPresent(identity);
+        if (type == null) {
+            type = sniff(file);
+            cache.put(identity, type);
+        }
+
+        return type;
+    }
+
+    public static ImageType sniff(Path file) throws IOException {
+        Validate.notNull(file, "File cannot be null");
+
+        ByteBuffer buffer = BUFFER.get();
+        buffer.clear();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) <= 0) break;
+            }
+        }
+
+        return of(buffer.array(), buffer.position());
+    }
+
+    public static ImageType of(byte[] header, int length) {
+        Validate.notNull(header, "Header cannot be null");
+
+        if (startsWith(header, length, 0, 0xFF, 0xD8, 0xFF))
+            return JPEG;
+        if (startsWith(header, length, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A))
+            return PNG;
+        if (startsWith(header, length, 0, 'G', 'I', 'F', '8'))
+            return GIF;
+        if (startsWith(header, length, 0, 'B', 'M') && length >= 14)
+            return BMP;
+        if (startsWith(header, length, 0, 'R', 'I', 'F', 'F') && startsWith(header, length, 8, 'W', 'E', 'B', 'P'))
+            return WEBP;
+
+        // Little and big endian TIFF, Olympus ORF ("IIRO", "IIRS", "MMOR") and Panasonic RW2 ("IIU")
+        if (startsWith(header, length, 0, 'I', 'I', 0x2A, 0x00) || startsWith(header, length, 0, 'M', 'M', 0x00, 0x2A)
+                || startsWith(header, length, 0, 'I', 'I', 'R', 'O') || startsWith(header, length, 0, 'I', 'I', 'R', 'S')
+                || startsWith(header, length, 0, 'M', 'M', 'O', 'R') || startsWith(header, length, 0, 'I', 'I', 'U', 0x00))
+            return TIFF;
+
+        // An "ftyp" box comes first, naming the major brand and then any number of compatible brands
+        if (startsWith(header, length, 4, 'f', 't', 'y', 'p')) {
+            int boxSize = Math.min(ByteBuffer.wrap(header, 0, 4).getInt(), length);
+            for (int brand = 8; brand + 4 <= boxSize; brand += 4) {
+                // Minor version sits between the major brand and the compatible brands
+                if (brand == 12) continue;
+                if (HEIF_BRANDS.contains(new String(header, brand, 4, StandardCharsets.US_ASCII)))
+                    return HEIF;
+            }
+
+            return MOVIE;
+        }
+
+        // Older QuickTime movies start without an "ftyp" box
+        if (startsWith(header, length, 4, 'm', 'o', 'o', 'v') || startsWith(header, length, 4, 'w', 'i', 'd', 'e')
+                || startsWith(header, length, 4, 'm', 'd', 'a', 't'))
+            return MOVIE;
+
+        return UNKNOWN;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int offset, int... signature) {
+        if (length < offset + signature.length) return false;
+
+        for (int i = 0; i < signature.length; i++)
+            if ((header[offset + i] & 0xFF) != signature[i])
+                return false;
+
+        return true;
+    }
+}
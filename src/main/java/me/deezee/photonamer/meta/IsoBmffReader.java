@@ -0,0 +1,250 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.meta;
+
+import me.deezee.photonamer.meta.FileWindow.Unsupported;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Date;
+
+import static me.deezee.photonamer.meta.FileWindow.UNSUPPORTED;
+
+/**
+ * Reads the capture date of ISO base media files (HEIC/HEIF, MP4 and MOV) by
+ * seeking from box header to box header.
+ *
+ * <p>Only the top level boxes, {@code moov/mvhd} and the
+ * {@code meta/iinf/iloc} boxes pointing at the EXIF item are read.  Media
+ * data is jumped over, so that a few KB are read whatever the file size.</p>
+ */
+final class IsoBmffReader {
+
+    private static final int FTYP = type("ftyp");
+    private static final int MOOV = type("moov");
+    private static final int MVHD = type("mvhd");
+    private static final int META = type("meta");
+    private static final int IINF = type("iinf");
+    private static final int INFE = type("infe");
+    private static final int ILOC = type("iloc");
+    private static final int EXIF = type("Exif");
+
+    // Older QuickTime movies start straight away with one of these instead of "ftyp"
+    private static final int[] QUICKTIME_FIRST_BOXES = {MOOV, type("mdat"), type("wide"), type("free"), type("skip")};
+
+    // Movie times count the seconds since 1904-01-01 UTC
+    private static final long EPOCH_1904 = -2_082_844_800L;
+
+    private static final int MAX_BOXES = 4096;
+
+    private IsoBmffReader() {}
+
+    static boolean isIsoBmff(FileWindow window) throws IOException, Unsupported {
+        if (window.size() < 8) return false;
+
+        window.order = ByteOrder.BIG_ENDIAN;
+        int first = (int) window.u32(4);
+        if (first == FTYP) return true;
+
+        for (int type : QUICKTIME_FIRST_BOXES)
+            if (first == type)
+                return true;
+
+        return false;
+    }
+
+    static ExifFastReader.Result read(FileWindow window) throws IOException, Unsupported {
+        window.order = ByteOrder.BIG_ENDIAN;
+
+        Date created = null;
+        long exifItem = -1;
+
+        long pos = 0;
+        for (int boxes = 0; pos + 8 <= window.size(); boxes++) {
+            if (boxes > MAX_BOXES) throw UNSUPPORTED;
+
+            Box box = Box.at(window, pos, window.size());
+            if (box.type == MOOV)       created = readMovieCreated(window, box);
+            else if (box.type == META)  exifItem = findExifItem(window, box);
+
+            // Media data is never read, however big it is
+            pos = box.end;
+        }
+
+        if (exifItem >= 0) {
+            // The EXIF item starts with the offset of its TIFF header
+            window.order = ByteOrder.BIG_ENDIAN;
+            long tiff = exifItem + 4 + window.u32(exifItem);
+
+            ExifFastReader.Result exif = ExifFastReader.readTiff(window, tiff);
+            if (exif.getTaken().isPresent() || created == null) return exif;
+
+            return new ExifFastReader.Result(created, exif.getLocation().orElse(null), window.getBytesRead());
+        }
+
+        // Neither a movie header nor EXIF, so leave it to the full reader
+        if (created == null) throw UNSUPPORTED;
+        return new ExifFastReader.Result(created, null, window.getBytesRead());
+    }
+
+    private static Date readMovieCreated(FileWindow window, Box moov) throws IOException, Unsupported {
+        for (long pos = moov.content; pos + 8 <= moov.end; ) {
+            Box box = Box.at(window, pos, moov.end);
+
+            if (box.type == MVHD) {
+                // Full box: version 1 has 64 bit times, version 0 has 32 bit times
+                int version = window.u8(box.content);
+                long seconds = version == 1 ? window.u64(box.content + 4) : window.u32(box.content + 4);
+
+                // Plenty of cameras leave it at 0 rather than setting a time
+                return seconds == 0 ? null : Date.from(Instant.ofEpochSecond(EPOCH_1904 + seconds));
+            }
+
+            pos = box.end;
+        }
+
+        return null;
+    }
+
+    // Returns the file offset of the EXIF item, or -1 if there is none
+    private static long findExifItem(FileWindow window, Box meta) throws IOException, Unsupported {
+        Box iinf = null;
+        Box iloc = null;
+
+        // Full box, so the children come after the version and flags
+        for (long pos = meta.content + 4; pos + 8 <= meta.end; ) {
+            Box box = Box.at(window, pos, meta.end);
+            if (box.type == IINF)       iinf = box;
+            else if (box.type == ILOC)  iloc = box;
+
+            pos = box.end;
+        }
+
+        if (iinf == null || iloc == null) return -1;
+
+        long itemId = findExifItemId(window, iinf);
+        return itemId < 0 ? -1 : findItemOffset(window, iloc, itemId);
+    }
+
+    private static long findExifItemId(FileWindow window, Box iinf) throws IOException, Unsupported {
+        int version = window.u8(iinf.content);
+        long pos = iinf.content + 4;
+        long count = version == 0 ? window.u16(pos) : window.u32(pos);
+        pos += version == 0 ? 2 : 4;
+
+        for (long i = 0; i < count && pos + 8 <= iinf.end; i++) {
+            Box infe = Box.at(window, pos, iinf.end);
+
+            // Item types only exist from version 2 of the item info entry
+            int infeVersion = window.u8(infe.content);
+            if (infe.type == INFE && infeVersion >= 2) {
+                long at = infe.content + 4;
+                long id = infeVersion == 2 ? window.u16(at) : window.u32(at);
+                at += (infeVersion == 2 ? 2 : 4) + 2;
+
+                if ((int) window.u32(at) == EXIF) return id;
+            }
+
+            pos = infe.end;
+        }
+
+        return -1;
+    }
+
+    private static long findItemOffset(FileWindow window, Box iloc, long itemId) throws IOException, Unsupported {
+        int version = window.u8(iloc.content);
+        long pos = iloc.content + 4;
+
+        int sizes = window.u8(pos);
+        int offsetSize = sizes >> 4;
+        int lengthSize = sizes & 0xF;
+
+        sizes = window.u8(pos + 1);
+        int baseOffsetSize = sizes >> 4;
+        int indexSize = version >= 1 ? sizes & 0xF : 0;
+        pos += 2;
+
+        long count = version < 2 ? window.u16(pos) : window.u32(pos);
+        pos += version < 2 ? 2 : 4;
+
+        for (long i = 0; i < count; i++) {
+            long id = version < 2 ? window.u16(pos) : window.u32(pos);
+            pos += version < 2 ? 2 : 4;
+
+            int constructionMethod = 0;
+            if (version >= 1) {
+                constructionMethod = window.u16(pos) & 0xF;
+                pos += 2;
+            }
+
+            // Data reference index
+            pos += 2;
+
+            long baseOffset = window.uint(pos, baseOffsetSize);
+            pos += baseOffsetSize;
+
+            int extents = window.u16(pos);
+            pos += 2;
+
+            long firstOffset = -1;
+            for (int e = 0; e < extents; e++) {
+                pos += indexSize;
+                long offset = window.uint(pos, offsetSize);
+                pos += offsetSize + lengthSize;
+
+                if (e == 0) firstOffset = offset;
+            }
+
+            if (pos > iloc.end) throw UNSUPPORTED;
+
+            if (id == itemId) {
+                // Only items stored directly in the file are supported
+                if (constructionMethod != 0 || firstOffset < 0) throw UNSUPPORTED;
+                return baseOffset + firstOffset;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int type(String type) {
+        byte[] bytes = type.getBytes(StandardCharsets.US_ASCII);
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+    private static final class Box {
+
+        private final int type;
+        private final long content;
+        private final long end;
+
+        private Box(int type, long content, long end) {
+            this.type = type;
+            this.content = content;
+            this.end = end;
+        }
+
+        private static Box at(FileWindow window, long pos, long parentEnd) throws IOException, Unsupported {
+            long size = window.u32(pos);
+            int type = (int) window.u32(pos + 4);
+            long content = pos + 8;
+
+            // A size of 1 means a 64 bit size follows, and 0 means the box runs to the end of its parent
+            if (size == 1) {
+                size = window.u64(pos + 8);
+                content += 8;
+            } else if (size == 0) {
+                size = parentEnd - pos;
+            }
+
+            if (size < content - pos || pos + size > parentEnd) throw UNSUPPORTED;
+            return new Box(type, content, pos + size);
+        }
+    }
+}
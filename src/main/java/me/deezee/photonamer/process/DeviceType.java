@@ -0,0 +1,63 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+public enum DeviceType {
+
+    // Default amount of file operations to keep in flight at once
+    SSD     (16),
+    HDD     (2),
+    NETWORK (4),
+    MEMORY  (32),
+    UNKNOWN (8);
+
+    private static final Set<String> NETWORK_TYPES = ImmutableSet.of(
+            "nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "afpfs", "webdav", "davfs", "fuse.sshfs", "9p");
+    private static final Set<String> MEMORY_TYPES = ImmutableSet.of("tmpfs", "ramfs");
+    private static final Path SYS_BLOCK = Path.of("/sys/class/block");
+
+    private final int concurrency;
+
+    DeviceType(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public int getDefaultConcurrency() {
+        return concurrency;
+    }
+
+    public static DeviceType of(FileStore store) {
+        String type = store.type().toLowerCase();
+        if (NETWORK_TYPES.contains(type))   return NETWORK;
+        if (MEMORY_TYPES.contains(type))    return MEMORY;
+
+        // Only Linux tells whether a block device spins, through sysfs
+        String name = store.name();
+        if (!name.startsWith("/dev/")) return UNKNOWN;
+
+        try {
+            // Partitions don't have a queue of their own, but their parent device does
+            Path device = SYS_BLOCK.resolve(Path.of(name).getFileName());
+            Path rotational = device.resolve("queue/rotational");
+            if (!Files.exists(rotational))
+                rotational = device.toRealPath().getParent().resolve("queue/rotational");
+
+            if (!Files.exists(rotational)) return UNKNOWN;
+            return Files.readString(rotational).trim().equals("1") ? HDD : SSD;
+        } catch (IOException | RuntimeException e) {
+            return UNKNOWN;
+        }
+    }
+}
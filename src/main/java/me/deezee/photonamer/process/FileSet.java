@@ -0,0 +1,31 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+// Files of a single shot, such as a RAW with its JPEG and XMP sidecar, which are named after the primary file
+final class FileSet {
+
+    final Path primary;
+    final BasicFileAttributes attributes;
+
+    // Moved along with the primary file, keeping whatever follows the shared stem of their names
+    final List<Path> companions;
+
+    FileSet(Path primary, BasicFileAttributes attributes, List<Path> companions) {
+        this.primary = primary;
+        this.attributes = attributes;
+        this.companions = List.copyOf(companions);
+    }
+
+    static FileSet of(Path file, BasicFileAttributes attributes) {
+        return new FileSet(file, attributes, List.of());
+    }
+}
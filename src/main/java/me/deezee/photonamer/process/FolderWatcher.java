@@ -0,0 +1,269 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import me.deezee.photonamer.NamerSettings;
+import me.deezee.photonamer.cache.FileIdentity;
+import me.deezee.photonamer.util.Printer;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Watches the source directory and hands over photos once they are completely
+ * written, for as long as the process keeps running.
+ *
+ * <p>Files already in the directory when watching starts are treated the same
+ * as new ones.  A file is ready once its size and modification time have not
+ * changed for the settle time.  Files of the same directory are only handed
+ * over together, once all of them are ready, so that a RAW file arriving a
+ * moment after its JPEG still ends up in the same set.</p>
+ */
+final class FolderWatcher {
+
+    // Also how often pending files are checked
+    private static final long POLL_MILLIS = 250;
+
+    // Files handed over and not changed since are never handed over again
+    private static final int MAX_RELEASED = 65_536;
+
+    private final NamerSettings settings;
+    private final PhotoWalker walker;
+    private final int maxDepth;
+    private final long settleNanos;
+
+    // Renamed files show up as new files too, if they stay in the watched tree
+    private final Predicate<Path> ignored;
+
+    private final Map<WatchKey, Watched> keys = new HashMap<>();
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private final Map<Path, FileIdentity> released = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, FileIdentity> eldest) {
+            return size() > MAX_RELEASED;
+        }
+    };
+
+    private long batches;
+
+    FolderWatcher(NamerSettings settings, PhotoWalker walker, int maxDepth, Predicate<Path> ignored) {
+        this.settings = Validate.notNull(settings, "Settings cannot be null");
+        this.walker = Validate.notNull(walker, "Walker cannot be null");
+        this.maxDepth = maxDepth;
+        this.settleNanos = TimeUnit.MILLISECONDS.toNanos(settings.getWatchSettleMillis());
+        this.ignored = Validate.notNull(ignored, "Ignored files predicate cannot be null");
+    }
+
+    // Runs until the checkpoint says to stop, or the visitor stops taking files
+    void watch(Checkpoint checkpoint, PhotoWalker.Visitor visitor) throws IOException, InterruptedException {
+        Path root = settings.getDirectory();
+
+        try (WatchService service = root.getFileSystem().newWatchService()) {
+            // Directories are watched before being listed, so that nothing landing in between is missed
+            register(service, root, 1);
+            Printer.debug("Watching %d folder(s) under '%s'", keys.size(), root);
+
+            while (checkpoint.check()) {
+                WatchKey key = service.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                for (; key != null; key = service.poll())
+                    handle(service, key);
+
+                if (!checkpoint.check() || !release(visitor)) break;
+            }
+        } catch (ClosedWatchServiceException e) {
+            Printer.debug("Stopped watching '%s': %s", root, e.toString());
+        }
+
+        Printer.debug("Watched '%s': %d batch(es), %d file(s) still pending", root, batches, pending.size());
+    }
+
+    private void handle(WatchService service, WatchKey key) {
+        Watched watched = keys.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (watched == null) continue;
+
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, so look at everything again
+                Printer.debug("Missed changes under '%s', scanning it again", watched.dir);
+                rescan(watched.dir, watched.depth);
+                continue;
+            }
+
+            Path entry = watched.dir.resolve((Path) event.context());
+
+            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && watched.depth < maxDepth)
+                    register(service, entry, watched.depth + 1);
+                continue;
+            }
+
+            offer(entry);
+        }
+
+        if (!key.reset()) keys.remove(key);
+    }
+
+    private void register(WatchService service, Path dir, int depth) {
+        try {
+            WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(key, new Watched(dir, depth));
+        } catch (IOException e) {
+            Printer.debug("Cannot watch '%s': %s", dir, e.toString());
+            return;
+        }
+
+        list(dir, depth, sub -> register(service, sub, depth + 1));
+    }
+
+    private void rescan(Path dir, int depth) {
+        list(dir, depth, sub -> rescan(sub, depth + 1));
+    }
+
+    private void list(Path dir, int depth, Consumer<Path> subDirectory) {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (depth < maxDepth) subDirectory.accept(entry);
+                    continue;
+                }
+
+                offer(entry);
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            Printer.debug("Cannot list '%s': %s", dir, e.toString());
+        }
+    }
+
+    private void offer(Path file) {
+        String name = file.getFileName().toString();
+        boolean sidecar = settings.isKeepFileSetsTogether() && settings.isSidecar(name);
+        if (!sidecar && !settings.isCandidate(name)) return;
+        if (ignored.test(file)) return;
+
+        // Still being written, so it starts settling all over again
+        pending.computeIfAbsent(file, Pending::new).changed = true;
+    }
+
+    // Hands over every directory whose pending files have all settled. Returns false if the visitor stopped.
+    private boolean release(PhotoWalker.Visitor visitor) throws InterruptedException {
+        if (pending.isEmpty()) return true;
+
+        long now = System.nanoTime();
+        Map<Path, List<Path>> ready = new TreeMap<>();
+        Map<Path, Boolean> settled = new HashMap<>();
+
+        for (Iterator<Pending> it = pending.values().iterator(); it.hasNext(); ) {
+            Pending file = it.next();
+            Path dir = file.path.getParent();
+
+            FileIdentity identity = identify(file.path);
+            if (identity == null) {
+                // Gone again, such as a temporary file renamed once written
+                it.remove();
+                continue;
+            }
+
+            if (file.changed || !identity.equals(file.identity)) {
+                file.identity = identity;
+                file.since = now;
+                file.changed = false;
+            }
+
+            boolean stable = now - file.since >= settleNanos;
+            settled.merge(dir, stable, Boolean::logicalAnd);
+            if (stable) ready.computeIfAbsent(dir, d -> new ArrayList<>()).add(file.path);
+        }
+
+        int count = 0;
+        for (Map.Entry<Path, List<Path>> dir : ready.entrySet()) {
+            if (!settled.get(dir.getKey())) continue;
+
+            List<Path> files = new ArrayList<>(dir.getValue().size());
+            for (Path file : dir.getValue()) {
+                Pending settledFile = pending.remove(file);
+
+                // Touched without being changed, after having been handed over already
+                if (settledFile.identity.equals(released.get(file))) continue;
+
+                released.put(file, settledFile.identity);
+                files.add(file);
+            }
+
+            count += files.size();
+            if (!files.isEmpty() && !walker.visit(files, visitor)) return false;
+        }
+
+        if (count > 0) {
+            batches++;
+            Printer.debug("Handed over a batch of %d file(s), %d still settling", count, pending.size());
+        }
+
+        return true;
+    }
+
+    private static FileIdentity identify(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? FileIdentity.of(file, attributes) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static final class Watched {
+
+        private final Path dir;
+        private final int depth;
+
+        private Watched(Path dir, int depth) {
+            this.dir = dir;
+            this.depth = depth;
+        }
+    }
+
+    private static final class Pending {
+
+        private final Path path;
+        private FileIdentity identity;
+        private long since;
+        private boolean changed;
+
+        private Pending(Path path) {
+            this.path = path;
+        }
+    }
+
+    @FunctionalInterface
+    interface Checkpoint {
+
+        // Blocks while paused and tells whether to carry on
+        boolean check() throws InterruptedException;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import me.deezee.photonamer.NamerSettings;
+import me.deezee.photonamer.util.Printer;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.concurrent.Semaphore;
+
+final class IOLimiter {
+
+    private final Semaphore input;
+    private final Semaphore output;
+
+    private IOLimiter(Semaphore input, Semaphore output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    // Bounds metadata reads on the source volume
+    void acquireInput() throws InterruptedException {
+        input.acquire();
+    }
+
+    void releaseInput() {
+        input.release();
+    }
+
+    // A move touches both volumes, unless they are the same one
+    void acquireMove() throws InterruptedException {
+        // Always the same order, so that two movers can never hold one permit each and wait on the other
+        input.acquire();
+        if (output != input) {
+            try {
+                output.acquire();
+            } catch (InterruptedException e) {
+                input.release();
+                throw e;
+            }
+        }
+    }
+
+    void releaseMove() {
+        if (output != input) output.release();
+        input.release();
+    }
+
+    static IOLimiter of(NamerSettings settings) throws IOException {
+        FileStore inStore = Files.getFileStore(settings.getDirectory());
+        FileStore outStore = Files.getFileStore(settings.getOutputDirectory());
+
+        int inLimit = limit(inStore, settings.getInputConcurrency(), "Input");
+        Semaphore input = new Semaphore(inLimit, true);
+
+        // Sharing a volume means sharing its limit too
+        if (inStore.equals(outStore))
+            return new IOLimiter(input, input);
+
+        int outLimit = limit(outStore, settings.getOutputConcurrency(), "Output");
+        return new IOLimiter(input, new Semaphore(outLimit, true));
+    }
+
+    private static int limit(FileStore store, int configured, String label) {
+        DeviceType device = DeviceType.of(store);
+        int limit = configured > 0 ? configured : device.getDefaultConcurrency();
+
+        Printer.debug("%s volume '%s' (%s, %s): up to %d operations at once",
+                label, store.name(), store.type(), device, limit);
+        return limit;
+    }
+}
@@ -6,211 +6,927 @@
 
 package me.deezee.photonamer.process;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import me.deezee.photonamer.ExecutorGroup;
 import me.deezee.photonamer.NamerSettings;
 import me.deezee.photonamer.PhotoNamer;
 import me.deezee.photonamer.PhotoWrapper;
 import me.deezee.photonamer.ServiceExecutor;
+import me.deezee.photonamer.cache.DirectoryManifest;
+import me.deezee.photonamer.cache.MetadataCache;
+import me.deezee.photonamer.cache.ParsedMetadataCache;
+import me.deezee.photonamer.format.NamerFormat;
 import me.deezee.photonamer.process.timer.Timer;
 import me.deezee.photonamer.util.Printer;
 import org.apache.commons.lang3.Validate;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Stream;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public final class NamerProcess {
 
+    // Renames that can still be undone while watching, unless the settings say otherwise
+    private static final int DEFAULT_WATCH_HISTORY = 10_000;
+
+    // Chains and cycles of a plan carried out together, a wave of moves at a time
+    private static final int APPLY_BATCH = 1024;
+
+    // Jobs the move stage takes at once, if that many are waiting, and journals with a single sync
+    private static final int MOVE_BATCH = 256;
+
     private final NamerSettings settings;
     private final NamerProcessFinishTask onFinish;
-    private final ConcurrentHashMap<Path, Path> moved = new ConcurrentHashMap<>();
+    // Every renamed photo, along with the sources and targets of the files moved with it.
+    // Bounded by the history limit, so that watching a folder for weeks doesn't keep growing it.
+    private final Map<Path, Map<Path, Path>> moved = Collections.synchronizedMap(new LinkedHashMap<>());
+    private volatile int historyLimit = Integer.MAX_VALUE;
+    // Worked out by plan(), and carried out by execute()
+    private volatile RenamePlan renamePlan;
+    private volatile boolean planning = false;
+    private volatile boolean watching = false;
     private volatile boolean busy = false;
     private volatile boolean finished = false;
+    private volatile boolean cancelled = false;
+    private volatile boolean paused = false;
+    private final Object pauseLock = new Object();
 
     NamerProcess(NamerSettings settings, NamerProcessFinishTask onFinish) {
         this.settings = Validate.notNull(settings, "Namer process settings cannot be null");
         this.onFinish = Validate.notNull(onFinish, "onFinish task must not be null (empty is allowed)");
     }
 
-    public synchronized boolean start() throws NamerProcessException {
+    public boolean start() throws NamerProcessException {
+        return await(submitRename(), this::onRenamed);
+    }
+
+    public ListenableFuture<NamerProcessResult> startAsync() throws NamerProcessException {
+        return whenDone(submitRename(), this::onRenamed);
+    }
+
+    // Keeps renaming photos as they land in the source directory, until cancelled
+    public boolean watch() throws NamerProcessException {
+        return await(submitWatch(), this::onRenamed);
+    }
+
+    public ListenableFuture<NamerProcessResult> watchAsync() throws NamerProcessException {
+        return whenDone(submitWatch(), this::onRenamed);
+    }
+
+    // Works out every rename without moving anything, so that the plan can be looked at before it is carried out
+    public boolean plan() throws NamerProcessException {
+        return await(submitPlan(), this::onPlanned);
+    }
+
+    public ListenableFuture<NamerProcessResult> planAsync() throws NamerProcessException {
+        return whenDone(submitPlan(), this::onPlanned);
+    }
+
+    public boolean execute() throws NamerProcessException {
+        return await(submitExecute(), this::onRenamed);
+    }
+
+    public ListenableFuture<NamerProcessResult> executeAsync() throws NamerProcessException {
+        return whenDone(submitExecute(), this::onRenamed);
+    }
+
+    public boolean undo() throws NamerProcessException {
+        return await(submitUndo(), this::onUndone);
+    }
+
+    public ListenableFuture<NamerProcessResult> undoAsync() throws NamerProcessException {
+        return whenDone(submitUndo(), this::onUndone);
+    }
+
+    private synchronized ListenableFuture<NamerProcessResult> submitRename() throws NamerProcessException {
         if (busy)       throw new NamerProcessException("Process is busy");
         if (finished)   throw new NamerProcessException("Process has already been executed");
 
         int maxDepth = settings.includeSubDirectories() ? Integer.MAX_VALUE : 1;
 
         busy = true;
+        cancelled = false;
+        planning = false;
+        historyLimit = settings.getHistoryLimit() > 0 ? settings.getHistoryLimit() : Integer.MAX_VALUE;
 
         Printer.log("\nRenaming...");
 
         // Perform task asynchronously
-        Future<NamerProcessResult> exe = ServiceExecutor.getCachedExecutor().submit(() -> {
-            Timer timer = new Timer().start();
-
-            // Set up a stream of images within directory
-            Stream<Path> imgs = Files.walk(settings.getDirectory(), maxDepth);
-
-            AtomicInteger count = new AtomicInteger(0);
-            AtomicInteger id = new AtomicInteger(0);
+        return ServiceExecutor.getCachedExecutor().submit(() -> rename(maxDepth));
+    }
 
-            // Remember errors
-            AtomicReference<Exception> error = new AtomicReference<>();
+    private synchronized ListenableFuture<NamerProcessResult> submitPlan() throws NamerProcessException {
+        if (busy)       throw new NamerProcessException("Process is busy");
+        if (finished)   throw new NamerProcessException("Process has already been executed");
 
-            imgs.forEach(inputFile -> {
-                // Ensure file is a valid image first of all
-                if (!settings.isImage(inputFile))
-                    return;
+        int maxDepth = settings.includeSubDirectories() ? Integer.MAX_VALUE : 1;
 
-                // Ensure image hasn't already been moved to prevent double-renaming
-                if (moved.containsValue(inputFile))
-                    return;
+        busy = true;
+        cancelled = false;
+        planning = true;
+        renamePlan = null;
 
-                try {
-                    PhotoWrapper photo = new PhotoWrapper(inputFile);
+        Printer.log("\nPlanning...");
 
-                    // If filtering out any photos that don't have datetime taken attribute tag,
-                    // then load the metadata for each EXIF or Xmp file and check
-                    if (settings.isFilterDateTimeTakenOnly() && photo.takenAt(ChronoField.YEAR).isEmpty())
-                        return;
+        // Perform task asynchronously
+        return ServiceExecutor.getCachedExecutor().submit(() -> rename(maxDepth));
+    }
 
-                    count.getAndIncrement();
+    private boolean onPlanned(NamerProcessResult res) {
+        Printer.log("Planned %s (%.2fs)", renamePlan == null ? "nothing" : renamePlan,
+                res.getTimeCompleted(TimeUnit.MILLISECONDS) / 1000f);
 
-                    Path target = photo.applyFormat(settings.getFormatting(), settings.getOutputDirectory(), id.get());
+        // Not finished yet, the plan still has to be executed
+        busy = false;
+        planning = false;
+        return onFinish.onFinish(res);
+    }
 
-                    // If succeeds, save renamed folder to cache to prevent double renaming and potential undo
-                    moved.put(inputFile, target);
+    private synchronized ListenableFuture<NamerProcessResult> submitExecute() throws NamerProcessException {
+        if (busy)                   throw new NamerProcessException("Process is busy");
+        if (finished)               throw new NamerProcessException("Process has already been executed");
+        if (renamePlan == null)     throw new NamerProcessException("Nothing has been planned");
 
-                    // Log success if available
-                    Printer.debug("Renamed (#%d) '%s' to '%s'", id.get(), inputFile.toString(), target.toString());
-                } catch (NamerProcessException e) {
-                    // This particular one failed, save it, if it hasn't occurred already
-                    if (error.get() == null)
-                        error.set(e);
-
-                    // Log error if available
-                    Printer.debug("Failed for (#%d) '%s': %s", id.get(), inputFile.toString(), e.toString());
-                } finally {
-                    id.getAndIncrement();
-                }
-            });
+        RenamePlan plan = renamePlan;
 
-            NamerProcessResult.Type type = NamerProcessResult.Type.UNKNOWN;
+        busy = true;
+        cancelled = false;
+        historyLimit = settings.getHistoryLimit() > 0 ? settings.getHistoryLimit() : Integer.MAX_VALUE;
 
-            int len = moved.size();
+        Printer.log("\nRenaming...");
 
-            if (error.get() == null) {
-                // No errors
-                if (len == 0) type = NamerProcessResult.Type.FAIL;
-                if (len == count.get()) type = NamerProcessResult.Type.SUCCESS;
-            } else {
-                type = NamerProcessResult.Type.FAIL;
-                PhotoNamer.alertError(error.get());
-            }
+        // Perform task asynchronously
+        return ServiceExecutor.getCachedExecutor().submit(() -> execute(plan));
+    }
 
-            return new NamerProcessResult(settings, type, len, timer.forceStop());
-        });
+    private synchronized ListenableFuture<NamerProcessResult> submitWatch() throws NamerProcessException {
+        if (busy)       throw new NamerProcessException("Process is busy");
+        if (finished)   throw new NamerProcessException("Process has already been executed");
 
-        boolean ok;
+        int maxDepth = settings.includeSubDirectories() ? Integer.MAX_VALUE : 1;
 
-        try {
-            NamerProcessResult res = exe.get();
+        busy = true;
+        cancelled = false;
+        planning = false;
+        watching = true;
+        historyLimit = settings.getHistoryLimit() > 0 ? settings.getHistoryLimit() : DEFAULT_WATCH_HISTORY;
 
-            Printer.log("%s (Count: %d, %.2fs)", res.getType().getMessage(),
-                    res.getAmountChanged(), res.getTimeCompleted(TimeUnit.MILLISECONDS) / 1000f);
+        Printer.log("\nWatching '%s'...", settings.getDirectory());
 
-            // Clear up
-            busy = false;
-            finished = true;
-            ok = onFinish.onFinish(res);
+        // Perform task asynchronously
+        return ServiceExecutor.getCachedExecutor().submit(() -> rename(maxDepth));
+    }
 
-        } catch (InterruptedException | ExecutionException e) {
-            throw new NamerProcessException(e);
-        }
+    private boolean onRenamed(NamerProcessResult res) {
+        Printer.log("%s (Count: %d, %.2fs)", res.getType().getMessage(),
+                res.getAmountChanged(), res.getTimeCompleted(TimeUnit.MILLISECONDS) / 1000f);
 
-        return ok;
+        // Clear up
+        busy = false;
+        finished = true;
+        watching = false;
+        return onFinish.onFinish(res);
     }
 
-    public synchronized boolean undo() throws NamerProcessException {
+    private synchronized ListenableFuture<NamerProcessResult> submitUndo() throws NamerProcessException {
         if (busy)                           throw new NamerProcessException("Process is busy");
         if (!finished || moved.isEmpty())   throw new NamerProcessException("Nothing to undo");
 
         finished = false;
         busy = true;
+        cancelled = false;
 
         Printer.log("\nUndoing...");
 
         // Perform task asynchronously
-        Future<NamerProcessResult> exe = ServiceExecutor.getCachedExecutor().submit(() -> {
-            Timer timer = new Timer().start();
+        return ServiceExecutor.getCachedExecutor().submit(this::restore);
+    }
 
-            int id = 0;
-            int count = 0;
+    private boolean onUndone(NamerProcessResult res) {
+        Printer.log("%s (Count: %d/%d, %.2fs)", res.getType().getMessage(), res.getAmountChanged(),
+                res.getAmountChanged() + moved.size(), res.getTimeCompleted(TimeUnit.MILLISECONDS) / 1000f);
 
-            for (Map.Entry<Path, Path> entrySet : moved.entrySet()) {
-                // Process is to rename 'tgt' back to 'src'
-                Path src = entrySet.getKey();
-                Path tgt = entrySet.getValue();
-
-                // Check preconditions
-                String err = null;
-                if (Files.exists(src))                  err = "New target already exists";
-                if (err != null && !Files.exists(tgt))  err = "Source no longer exists";
-                if (err != null) {
-                    Printer.debug("Skipping undo for (#%d) '%s' -> '%s': %s",
-                            id, tgt.toString(), src.toString(), err);
-                    id++;
-                    continue;
+        // Clear up, unless cancelled. Then the rest can still be undone later on.
+        if (cancelled)  finished = true;
+        else            moved.clear();
+
+        busy = false;
+        return onFinish.onFinish(res);
+    }
+
+    private boolean await(ListenableFuture<NamerProcessResult> exe,
+                          Function<NamerProcessResult, Boolean> then) throws NamerProcessException {
+        NamerProcessResult res;
+
+        try {
+            res = exe.get();
+        } catch (InterruptedException | ExecutionException e) {
+            busy = false;
+            throw new NamerProcessException(e);
+        }
+
+        return then.apply(res);
+    }
+
+    private ListenableFuture<NamerProcessResult> whenDone(ListenableFuture<NamerProcessResult> exe,
+                                                          Function<NamerProcessResult, Boolean> then) {
+        // Runs on whichever thread completes the task, so the caller is never blocked
+        Futures.addCallback(exe, new FutureCallback<>() {
+            @Override
+            public void onSuccess(NamerProcessResult res) {
+                then.apply(res);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                busy = false;
+                PhotoNamer.alertError(t instanceof Exception ? (Exception) t : new NamerProcessException(t));
+            }
+        }, MoreExecutors.directExecutor());
+
+        return exe;
+    }
+
+    private NamerProcessResult rename(int maxDepth) throws Exception {
+        Timer timer = new Timer().start();
+
+        AtomicInteger count = new AtomicInteger(0);
+        AtomicInteger renamed = new AtomicInteger(0);
+
+        // Filled in by the walk, and saved only if every photo made it through. Not kept while watching,
+        // nor while planning, since nothing is renamed until the plan is executed.
+        String fingerprint = manifestFingerprint();
+        DirectoryManifest manifest = watching || planning
+                ? null : DirectoryManifest.create(settings.getDirectory(), fingerprint);
+
+        // Every photo of the walk, when only planning
+        Collection<RenameJob> planned = new ConcurrentLinkedQueue<>();
+
+        // Lets the renames be undone in a later session too
+        UndoJournal journal = planning
+                ? null : UndoJournal.create(settings.getDirectory(), settings.getOutputDirectory());
+
+        // Hands out the names of the move stage. Since a name is claimed before the file is moved there,
+        // this also recognises freshly renamed files that the walk comes across again.
+        TargetRegistry registry = new TargetRegistry();
+
+        // Remember errors
+        AtomicReference<Exception> error = new AtomicReference<>();
+
+        // Source and output may sit on very different devices, so each gets its own limit
+        IOLimiter io = IOLimiter.of(settings);
+
+        // Only read what the template and filter actually need
+        ReadPlan plan = ReadPlan.of(settings);
+        Printer.debug("Read plan: %s", plan);
+
+        PipelineStage filter = newStage(NamerStage.FILTER, error, job -> {
+            // The walk has already checked the name and type of each file, using a single stat
+            if (registry.isClaimed(job.input)) return false;
+            if (!settings.getImageDetection().sniffs()) return true;
+
+            io.acquireInput();
+            try {
+                return settings.isImage(job.input, job.attributes);
+            } finally {
+                io.releaseInput();
+            }
+        });
+
+        PipelineStage extract = newStage(NamerStage.EXTRACT, error, job -> {
+            job.photo = new PhotoWrapper(job.input, job.attributes);
+
+            io.acquireInput();
+            try {
+                // Load everything up front so that naming never has to wait for the disk
+                plan.load(job.photo);
+
+                // If filtering out any photos that don't have datetime taken attribute tag,
+                // then check the metadata which has just been loaded
+                if (settings.isFilterDateTimeTakenOnly() && job.photo.takenAt(ChronoField.YEAR).isEmpty())
+                    return false;
+            } finally {
+                io.releaseInput();
+            }
+
+            count.getAndIncrement();
+            return true;
+        });
+
+        PipelineStage name = newStage(NamerStage.NAME, error, job -> {
+            job.name = job.photo.format(settings.getFormatting(), job.id);
+            return true;
+        });
+
+        // Every job waiting on the move stage is named and journaled first, so that a single sync of the
+        // journal covers all of them before any file is moved
+        PipelineStage move = newStage(NamerStage.MOVE, error, MOVE_BATCH, new PipelineStage.BatchWork() {
+            @Override
+            public boolean prepare(RenameJob job) throws Exception {
+                if (!checkpoint()) return false;
+
+                if (planning) {
+                    // Targets are only worked out once every source is known. Only the paths are needed for
+                    // that, so the metadata that has been loaded doesn't have to stay around until then.
+                    job.photo = new PhotoWrapper(job.input, job.attributes);
+                    planned.add(job);
+                    renamed.getAndIncrement();
+                    return true;
                 }
 
-                // Rename target file back to source file
+                io.acquireMove();
                 try {
-                    Files.move(tgt, src);
+                    job.claim = job.photo.claim(job.name, settings.getOutputDirectory(), registry, job.companions);
+                } finally {
+                    io.releaseMove();
+                }
 
-                    // Log success if available
-                    Printer.debug("Renamed (#%d) '%s' to '%s'", id, tgt.toString(), src.toString());
+                // Files that already have their names aren't moved, so there is nothing to journal
+                job.targets = job.photo.targets(job.claim, job.companions);
+                for (Map.Entry<Path, Path> target : job.targets.entrySet()) {
+                    if (!target.getKey().equals(target.getValue())) {
+                        job.record = journal.planned(job.input, job.targets);
+                        break;
+                    }
+                }
+
+                return true;
+            }
+
+            @Override
+            public void between(List<RenameJob> prepared) {
+                // Nothing is moved before the journal has it on disk
+                if (!planning) journal.commit();
+            }
+
+            @Override
+            public boolean finish(RenameJob job) throws Exception {
+                if (planning) return true;
 
-                    count++;
-                } catch (Exception e) {
-                    // Log error if available - and skip renaming this file
-                    Printer.debug("Failed undo for (#%d) '%s' -> '%s': %s",
-                            id, tgt.toString(), src.toString(), e.toString());
+                if (!checkpoint()) {
+                    job.claim.release();
+                    return false;
+                }
+
+                Map<Path, Path> journaled = job.targets;
+
+                io.acquireMove();
+                try {
+                    job.targets = job.photo.move(job.claim, job.name, settings.getOutputDirectory(), registry,
+                            job.companions, targets -> {
+                                if (targets.equals(journaled)) return () -> journal.done(job.record);
+
+                                // Names taken from outside in the meantime are swapped for fresh ones,
+                                // which are synced on their own
+                                int record = journal.planned(job.input, targets);
+                                journal.commit();
+                                return () -> journal.done(record);
+                            });
                 } finally {
-                    id++;
+                    io.releaseMove();
                 }
+
+                // If succeeds, save renamed folder to cache for potential undo. A set is undone as a whole.
+                remember(job.input, job.targets, registry);
+                renamed.getAndIncrement();
+
+                // Log success if available
+                Printer.debug("Renamed (#%d) '%s' to '%s'%s", job.id, job.input.toString(),
+                        job.targets.get(job.input).toString(),
+                        job.companions.isEmpty() ? "" : " with " + job.companions.size() + " companion file(s)");
+                return true;
             }
+        });
 
-            NamerProcessResult.Type type = NamerProcessResult.Type.UNKNOWN;
+        filter.then(extract).then(name).then(move);
 
-            if (id == 0) type = NamerProcessResult.Type.FAIL;
-            else if (count == id) type = NamerProcessResult.Type.SUCCESS;
+        List<PipelineStage> stages = List.of(filter, extract, name, move);
+        StageStats walkStats;
 
-            return new NamerProcessResult(settings, type, count, timer.forceStop());
-        });
+        try (ExecutorGroup executors = ServiceExecutor.newExecutorGroup(
+                settings.getExecutorStrategy(), settings::getStageThreads)) {
+            for (PipelineStage stage : stages)
+                stage.start(executors.get(stage.getStage()));
 
-        boolean ok;
+            // The walk is driven from this thread. When the stages fall behind, the filter queue fills up
+            // and blocks the walk, rather than buffering the whole directory tree in memory.
+            long walkStart = System.nanoTime();
+            AtomicInteger id = new AtomicInteger(0);
 
-        try {
-            NamerProcessResult res = exe.get();
+            PhotoWalker walker = new PhotoWalker(settings, maxDepth, watching ? 1 : walkParallelism());
 
-            Printer.log("%s (Count: %d/%d, %.2fs)", res.getType().getMessage(),
-                    res.getAmountChanged(), moved.size(), res.getTimeCompleted(TimeUnit.MILLISECONDS) / 1000f);
+            // Directories that haven't changed since the last run are skipped, unless everything is to be walked
+            if (manifest != null) {
+                walker.withManifest(settings.isFullScan()
+                        ? DirectoryManifest.create(settings.getDirectory(), fingerprint)
+                        : DirectoryManifest.load(settings.getDirectory(), fingerprint), manifest);
+            }
 
-            // Clear up
-            moved.clear();
-            busy = false;
-            ok = onFinish.onFinish(res);
+            PhotoWalker.Visitor submit = set -> {
+                if (!checkpoint()) return false;
 
-        } catch (InterruptedException | ExecutionException e) {
+                // IDs are handed out in walk order, so that names never depend on thread timing.
+                // While watching, they carry on from one batch to the next.
+                filter.submit(new RenameJob(id.getAndIncrement(), set));
+                return true;
+            };
+
+            // The journal sits in the output folder, which may well be the one being watched
+            Predicate<Path> ignored = file -> registry.isClaimed(file) || UndoJournal.isJournal(file);
+
+            try {
+                if (watching)   new FolderWatcher(settings, walker, maxDepth, ignored)
+                                        .watch(this::checkpoint, submit);
+                else            walker.walk(settings.getDirectory(), submit);
+            } finally {
+                filter.end();
+            }
+
+            walkStats = new StageStats(NamerStage.WALK, walker.getParallelism(), 0, 0,
+                    walker.getWalked(), walker.getSkipped(), System.nanoTime() - walkStart);
+            if (manifest != null)
+                Printer.debug("Skipped %d unchanged directories", walker.getPruned());
+
+            move.await();
+        } finally {
+            if (journal != null) journal.close();
+        }
+
+        if (planning && !cancelled && error.get() == null) {
+            try {
+                renamePlan = plan(planned);
+            } catch (Exception e) {
+                error.compareAndSet(null, e);
+            }
+        } else {
+            Printer.debug("Target registry: %s", registry);
+        }
+
+        if (plan.needs(NamerFormat.DataSource.EXIF)) {
+            MetadataCache cache = MetadataCache.getDefault();
+            cache.flush();
+
+            Printer.debug("Metadata cache: %d hits, %d misses so far", cache.getHits(), cache.getMisses());
+            Printer.debug("Parsed metadata cache: %s", ParsedMetadataCache.getStats());
+            if (count.get() > 0)
+                Printer.debug("Read %.1f KB of metadata per photo", plan.getMetadataBytes() / 1e3 / count.get());
+        }
+
+        if (plan.needs(NamerFormat.DataSource.CONTENT)) {
+            // Compare against the read speed of the source disk to tell whether hashing keeps up with it
+            long hashMillis = Math.max(plan.getHashTime(TimeUnit.MILLISECONDS), 1);
+            Printer.debug("Hashed %.1f MB in %.2fs of worker time (%.1f MB/s per worker)",
+                    plan.getHashedBytes() / 1e6, hashMillis / 1000f, plan.getHashedBytes() / 1e3 / hashMillis);
+        }
+
+        List<StageStats> stats = new ArrayList<>(stages.size() + 1);
+        stats.add(walkStats);
+        for (PipelineStage stage : stages) {
+            StageStats stageStats = stage.getStats();
+            stats.add(stageStats);
+            Printer.debug("%s", stageStats);
+        }
+
+        if (manifest != null && !cancelled && error.get() == null)
+            saveManifest(manifest);
+
+        NamerProcessResult.Type type = NamerProcessResult.Type.UNKNOWN;
+
+        int len = renamed.get();
+
+        if (cancelled && !watching) {
+            // Whatever has been moved so far can still be undone
+            type = NamerProcessResult.Type.CANCELLED;
+        } else if (error.get() == null) {
+            // No errors
+            if (len == 0) type = NamerProcessResult.Type.FAIL;
+            if (len == count.get()) type = NamerProcessResult.Type.SUCCESS;
+        } else {
+            type = NamerProcessResult.Type.FAIL;
+            PhotoNamer.alertError(error.get());
+        }
+
+        return new NamerProcessResult(settings, type, len, timer.forceStop(), stats);
+    }
+
+    private void remember(Path input, Map<Path, Path> targets, TargetRegistry registry) {
+        synchronized (moved) {
+            moved.put(input, targets);
+            if (moved.size() <= historyLimit) return;
+
+            // Forget the oldest rename. Its files exist by now, so their names stay taken without claiming.
+            Iterator<Map<Path, Path>> oldest = moved.values().iterator();
+            registry.forget(oldest.next().values());
+            oldest.remove();
+        }
+    }
+
+    // Records where a file of a planned photo is now, so that even a set left half way can be undone
+    private void remember(RenamePlan.Step step) {
+        synchronized (moved) {
+            moved.computeIfAbsent(step.entry.getSource(), source -> new LinkedHashMap<>()).put(step.source, step.to);
+            if (moved.size() <= historyLimit) return;
+
+            Iterator<Path> oldest = moved.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private RenamePlan plan(Collection<RenameJob> jobs) throws NamerProcessException {
+        // Claimed in walk order, so that conflict suffixes are the same as when renaming straight away
+        List<RenameJob> sorted = new ArrayList<>(jobs);
+        sorted.sort(Comparator.comparingInt(job -> job.id));
+
+        // Nothing may change on disk while planning, not even new group folders
+        TargetRegistry registry = new TargetRegistry(false);
+
+        try {
+            // Every file of the plan gives up its name, so that a photo already named as planned keeps
+            // its name, and photos may take each other's names. The plan takes care of the order.
+            for (RenameJob job : sorted) {
+                registry.vacate(job.input);
+                for (Path companion : job.companions)
+                    registry.vacate(companion);
+            }
+        } catch (IOException e) {
             throw new NamerProcessException(e);
         }
 
-        return ok;
+        List<RenamePlan.Entry> entries = new ArrayList<>(sorted.size());
+        for (RenameJob job : sorted) {
+            // Targets are absolute, so sources have to be as well for the plan to see which names they take
+            Map<Path, Path> files = new LinkedHashMap<>();
+            job.photo.plan(job.name, settings.getOutputDirectory(), registry, job.companions)
+                    .forEach((source, target) -> files.put(absolute(source), target));
+            entries.add(new RenamePlan.Entry(job.id, absolute(job.input), files));
+        }
+
+        RenamePlan plan = RenamePlan.of(entries);
+        Printer.debug("Target registry: %s", registry);
+        return plan;
+    }
+
+    private static Path absolute(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    private NamerProcessResult execute(RenamePlan plan) {
+        Timer timer = new Timer().start();
+
+        Exception error;
+        UndoJournal journal = UndoJournal.create(settings.getDirectory(), settings.getOutputDirectory());
+        try {
+            error = apply(plan, journal, step -> {
+                int planned = journal.planned(step.entry.getSource(), Map.of(step.source, step.to));
+
+                return () -> {
+                    journal.done(planned);
+                    remember(step);
+
+                    // Log success if available
+                    if (step.isFinal() && step.source.equals(step.entry.getSource())) {
+                        MetadataCache.getDefault().moved(step.source, step.to);
+                        Printer.debug("Renamed (#%d) '%s' to '%s'", step.entry.getId(), step.source, step.to);
+                    }
+                };
+            });
+        } finally {
+            journal.close();
+        }
+
+        // Only photos whose files have all reached their targets count as renamed
+        int len = 0;
+        int total = 0;
+        for (RenamePlan.Entry entry : plan.getEntries()) {
+            if (entry.isUnchanged()) continue;
+            total++;
+
+            Map<Path, Path> set = moved.get(entry.getSource());
+            if (set == null) continue;
+
+            boolean done = true;
+            for (Map.Entry<Path, Path> file : entry.getFiles().entrySet())
+                if (!file.getKey().equals(file.getValue()) && !file.getValue().equals(set.get(file.getKey())))
+                    done = false;
+
+            if (done) len++;
+        }
+
+        renamePlan = null;
+
+        NamerProcessResult.Type type = NamerProcessResult.Type.UNKNOWN;
+
+        if (cancelled) {
+            // Whatever has been moved so far can still be undone
+            type = NamerProcessResult.Type.CANCELLED;
+        } else if (error == null) {
+            // No errors
+            if (len == 0) type = NamerProcessResult.Type.FAIL;
+            if (len == total) type = NamerProcessResult.Type.SUCCESS;
+        } else {
+            type = NamerProcessResult.Type.FAIL;
+            PhotoNamer.alertError(error);
+        }
+
+        return new NamerProcessResult(settings, type, len, timer.forceStop());
+    }
+
+    /*
+     * Carries out the moves of a plan a wave at a time: the first move of every chain or cycle, then the
+     * second, and so on. The listener is told about each move of a wave before any of them is made, and
+     * hands back what to do once it has been. The journal is synced once in between, rather than once per
+     * move. A failed move skips the rest of its chain or cycle, since they depend on it, but not the
+     * others. Returns the first failure, if any.
+     */
+    private Exception apply(RenamePlan plan, UndoJournal journal, Function<RenamePlan.Step, Runnable> listener) {
+        Exception error = null;
+        Set<Path> created = new HashSet<>();
+        List<List<RenamePlan.Step>> groups = plan.getGroups();
+
+        // A batch of groups at a time, which bounds the moves on record as planned but not as done
+        for (int first = 0; first < groups.size(); first += APPLY_BATCH) {
+            List<List<RenamePlan.Step>> batch = groups.subList(first, Math.min(first + APPLY_BATCH, groups.size()));
+            boolean[] failed = new boolean[batch.size()];
+
+            for (int wave = 0; ; wave++) {
+                try {
+                    if (!checkpoint()) return error;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return error;
+                }
+
+                List<Integer> owners = new ArrayList<>();
+                List<RenamePlan.Step> steps = new ArrayList<>();
+                List<Runnable> finished = new ArrayList<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (failed[i] || wave >= batch.get(i).size()) continue;
+
+                    RenamePlan.Step step = batch.get(i).get(wave);
+                    owners.add(i);
+                    steps.add(step);
+                    finished.add(listener.apply(step));
+                }
+
+                if (steps.isEmpty()) break;
+
+                // Nothing is moved before the journal has it on disk
+                journal.commit();
+
+                for (int i = 0; i < steps.size(); i++) {
+                    RenamePlan.Step step = steps.get(i);
+                    try {
+                        // Group folders are created once, just before the first file goes in
+                        Path dir = step.to.getParent();
+                        if (dir != null && created.add(dir)) Files.createDirectories(dir);
+
+                        Files.move(step.from, step.to);
+                    } catch (IOException e) {
+                        // Log error if available - and skip the moves depending on this one
+                        Printer.debug("Failed to move (#%d) '%s' to '%s': %s",
+                                step.entry.getId(), step.from, step.to, e.toString());
+                        if (error == null) error = e;
+                        failed[owners.get(i)] = true;
+                        continue;
+                    }
+
+                    finished.get(i).run();
+                }
+            }
+        }
+
+        return error;
+    }
+
+    private void saveManifest(DirectoryManifest manifest) {
+        // Renames change the directories they move files between, which the manifest is told about
+        Map<Path, Integer> moves = new HashMap<>();
+        synchronized (moved) {
+            for (Map<Path, Path> set : moved.values()) {
+                for (Map.Entry<Path, Path> file : set.entrySet()) {
+                    moves.merge(file.getKey().toAbsolutePath().normalize().getParent(), -1, Integer::sum);
+                    moves.merge(file.getValue().toAbsolutePath().normalize().getParent(), 1, Integer::sum);
+                }
+            }
+        }
+
+        manifest.refresh(moves);
+        manifest.save();
+    }
+
+    // Anything that changes which files are renamed, or what to, makes the last run's manifest useless
+    private String manifestFingerprint() {
+        return String.join("\n",
+                settings.getFormatting().getFormat(),
+                settings.getFormatting().getGrouping().map(Enum::name).orElse(""),
+                settings.getOutputDirectory().toAbsolutePath().normalize().toString(),
+                String.join(",", new TreeSet<>(settings.getImageExtensions())),
+                settings.getImageDetection().name(),
+                String.valueOf(settings.includeSubDirectories()),
+                String.valueOf(settings.isFollowLinks()),
+                String.valueOf(settings.isKeepFileSetsTogether()),
+                String.valueOf(settings.isFilterDateTimeTakenOnly()));
+    }
+
+    private int walkParallelism() {
+        // Sequential IDs follow the walk order, which only stays the same from run to run on a single thread
+        if (settings.getFormatting().getTemplate().uses(NamerFormat.Var.ID)) return 1;
+
+        return settings.getStageThreads(NamerStage.WALK);
+    }
+
+    private PipelineStage newStage(NamerStage stage, AtomicReference<Exception> error, PipelineStage.Work work) {
+        int threads = settings.getExecutorStrategy().getThreads(settings.getStageThreads(stage));
+
+        // Once cancelled, whatever is left in the queues is drained without being touched
+        return new PipelineStage(stage, threads, settings.getQueueCapacity(),
+                job -> checkpoint() && work.process(job), error);
+    }
+
+    private PipelineStage newStage(NamerStage stage, AtomicReference<Exception> error,
+                                   int batchSize, PipelineStage.BatchWork work) {
+        int threads = settings.getExecutorStrategy().getThreads(settings.getStageThreads(stage));
+        return new PipelineStage(stage, threads, settings.getQueueCapacity(), batchSize, work, error);
+    }
+
+    // Blocks for as long as the process is paused and tells whether it may carry on
+    private boolean checkpoint() throws InterruptedException {
+        if (paused) {
+            synchronized (pauseLock) {
+                while (paused && !cancelled)
+                    pauseLock.wait();
+            }
+        }
+
+        return !cancelled;
+    }
+
+    private NamerProcessResult restore() {
+        Timer timer = new Timer().start();
+
+        int id = 0;
+        AtomicInteger count = new AtomicInteger(0);
+
+        // Iterate over a copy, since restored photos are removed as it goes
+        List<Map.Entry<Path, Map<Path, Path>>> history;
+        synchronized (moved) {
+            history = new ArrayList<>(moved.entrySet());
+        }
+
+        // Files that the undo moves away, so that their names are free by the time they're needed
+        Set<Path> vacated = new HashSet<>();
+        for (Map.Entry<Path, Map<Path, Path>> entrySet : history)
+            for (Path file : entrySet.getValue().values())
+                vacated.add(absolute(file));
+
+        // The plan works on absolute paths, the history keeps them as they were walked
+        Map<Path, Path> walked = new HashMap<>();
+
+        // Undone as a plan of its own, so that photos which swapped names can swap back
+        List<RenamePlan.Entry> entries = new ArrayList<>(history.size());
+        for (Map.Entry<Path, Map<Path, Path>> entrySet : history) {
+            // Process is to rename 'tgt' back to 'src', along with the rest of its set
+            Path src = entrySet.getKey();
+            Map<Path, Path> set = new LinkedHashMap<>(entrySet.getValue());
+            Path tgt = set.containsKey(src) ? set.get(src) : set.values().iterator().next();
+
+            // Check preconditions
+            String err = null;
+            Map<Path, Path> back = new LinkedHashMap<>();
+            for (Map.Entry<Path, Path> file : set.entrySet()) {
+                if (Files.exists(file.getKey()) && !vacated.contains(absolute(file.getKey())))
+                    err = "New target already exists";
+                if (err != null && !Files.exists(file.getValue()))  err = "Source no longer exists";
+                if (err != null) break;
+
+                back.put(absolute(file.getValue()), absolute(file.getKey()));
+                walked.put(absolute(file.getKey()), file.getKey());
+            }
+
+            if (err != null) {
+                Printer.debug("Skipping undo for (#%d) '%s' -> '%s': %s",
+                        id, tgt.toString(), src.toString(), err);
+            } else {
+                entries.add(new RenamePlan.Entry(id, absolute(tgt), back));
+            }
+
+            id++;
+        }
+
+        // Also holds whatever an earlier attempt could not undo, or the history of a long watch forgot
+        UndoJournal journal = UndoJournal.open(settings.getDirectory(), settings.getOutputDirectory());
+        try {
+            apply(RenamePlan.of(entries), journal, step -> {
+                Map.Entry<Path, Map<Path, Path>> entrySet = history.get(step.entry.getId());
+                Path src = entrySet.getKey();
+                Map<Path, Path> set = entrySet.getValue();
+                Path original = walked.get(step.entry.getFiles().get(step.source));
+                Path location = step.isFinal() ? original : step.to;
+
+                int planned = journal.planned(src, Map.of(original, location));
+
+                return () -> {
+                    journal.done(planned);
+
+                    synchronized (moved) {
+                        if (step.isFinal()) set.remove(original);
+                        else                set.put(original, location);
+
+                        if (!set.isEmpty()) return;
+                        moved.remove(src);
+                    }
+
+                    MetadataCache.getDefault().moved(step.entry.getSource(), src);
+
+                    // Log success if available
+                    Printer.debug("Renamed (#%d) '%s' to '%s'", step.entry.getId(),
+                            step.entry.getSource().toString(), src.toString());
+                    count.getAndIncrement();
+                };
+            });
+        } finally {
+            journal.close();
+        }
+
+        // Nothing left to undo, not even by a later session
+        Set<Path> left = new HashSet<>(journal.getHistory().keySet());
+        for (Map.Entry<Path, Map<Path, Path>> entrySet : history)
+            if (!moved.containsKey(entrySet.getKey())) left.remove(absolute(entrySet.getKey()));
+        if (moved.isEmpty() && left.isEmpty())
+            UndoJournal.discard(settings.getDirectory(), settings.getOutputDirectory());
+
+        NamerProcessResult.Type type = NamerProcessResult.Type.UNKNOWN;
+
+        if (cancelled) type = NamerProcessResult.Type.CANCELLED;
+        else if (id == 0) type = NamerProcessResult.Type.FAIL;
+        else if (count.get() == id) type = NamerProcessResult.Type.SUCCESS;
+
+        return new NamerProcessResult(settings, type, count.get(), timer.forceStop());
+    }
+
+    public void cancel() {
+        cancelled = true;
+
+        // Wake up anything waiting on a pause so that it can stop
+        resume();
+    }
+
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    // Picks up what an earlier session journaled for the source directory, so that it can be undone
+    public synchronized boolean recover() throws NamerProcessException {
+        if (busy)       throw new NamerProcessException("Process is busy");
+        if (finished)   throw new NamerProcessException("Process has already been executed");
+        if (!UndoJournal.exists(settings.getDirectory(), settings.getOutputDirectory())) return false;
+
+        UndoJournal journal = UndoJournal.open(settings.getDirectory(), settings.getOutputDirectory());
+        journal.close();
+
+        for (Map.Entry<Path, Map<Path, Path>> set : journal.getHistory().entrySet())
+            moved.put(set.getKey(), new LinkedHashMap<>(set.getValue()));
+
+        finished = !moved.isEmpty();
+        Printer.log("Recovered %d renamed photo(s) from '%s'", moved.size(), journal.getFile());
+        return finished;
+    }
+
+    // The plan of the last call to plan(), until it has been executed
+    public Optional<RenamePlan> getPlan() {
+        return Optional.ofNullable(renamePlan);
     }
 
     public NamerSettings getSettings() {
@@ -224,4 +940,12 @@ public final class NamerProcess {
     public boolean hasFinished() {
         return finished;
     }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
 }
\ No newline at end of file
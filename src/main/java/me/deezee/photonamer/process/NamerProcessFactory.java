@@ -8,6 +8,7 @@ package me.deezee.photonamer.process;
 
 import me.deezee.photonamer.NamerSettings;
 
+import java.nio.file.Path;
 import java.util.Optional;
 
 public final class NamerProcessFactory {
@@ -28,6 +29,18 @@ public final class NamerProcessFactory {
         return currentProcess;
     }
 
+    // A process which can only undo what an earlier session journaled for the directories, if anything
+    public Optional<NamerProcess> recoverProcess(Path directory, Path outputDirectory,
+                                                 NamerProcessFinishTask onFinish) throws NamerProcessException {
+        NamerSettings settings = new NamerSettings().setDirectory(directory).setOutputDirectory(outputDirectory);
+
+        NamerProcess process = new NamerProcess(settings, onFinish);
+        if (!process.recover()) return Optional.empty();
+
+        currentProcess = process;
+        return Optional.of(process);
+    }
+
     public Optional<NamerProcess> getCurrentProcess() {
         return Optional.ofNullable(currentProcess);
     }
@@ -6,10 +6,13 @@
 
 package me.deezee.photonamer.process;
 
+import com.google.common.collect.ImmutableList;
 import me.deezee.photonamer.NamerSettings;
 import me.deezee.photonamer.process.timer.Timer;
 import org.apache.commons.lang3.Validate;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class NamerProcessResult {
@@ -18,12 +21,18 @@ public class NamerProcessResult {
     private final Type type;
     private final int changed;
     private final Timer timer;
+    private final List<StageStats> stages;
 
     public NamerProcessResult(NamerSettings settings, Type type, int changed, Timer timer) {
+        this(settings, type, changed, timer, Collections.emptyList());
+    }
+
+    public NamerProcessResult(NamerSettings settings, Type type, int changed, Timer timer, List<StageStats> stages) {
         this.settings = Validate.notNull(settings, "Settings used cannot be null");
         this.type = Validate.notNull(type, "Process result type cannot be null");
         this.changed = changed < 0 ? -1 : changed;
         this.timer = Validate.notNull(timer, "Process task timer cannot be null");
+        this.stages = ImmutableList.copyOf(Validate.notNull(stages, "Stage statistics cannot be null"));
     }
 
     public NamerSettings getSettings() {
@@ -42,11 +51,16 @@ public class NamerProcessResult {
         return timer.getTime(unit);
     }
 
+    public List<StageStats> getStageStats() {
+        return stages;
+    }
+
     public enum Type {
 
         SUCCESS("Photo renaming process was successful!"),
         FAIL("Photo renaming process failed!"),
-        UNKNOWN("Photo renaming partially (?) successful.");
+        UNKNOWN("Photo renaming partially (?) successful."),
+        CANCELLED("Photo renaming process was cancelled.");
 
         private final String msg;
 
@@ -0,0 +1,32 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+public enum NamerStage {
+
+    WALK    (true,  "Walks the source directory"),
+    FILTER  (true,  "Filters out anything that is not an image"),
+    EXTRACT (true,  "Reads file attributes and photo metadata"),
+    NAME    (false, "Computes the new file name"),
+    MOVE    (true,  "Moves the file to its new name");
+
+    private final boolean io;
+    private final String description;
+
+    NamerStage(boolean io, String description) {
+        this.io = io;
+        this.description = description;
+    }
+
+    public boolean isIOBound() {
+        return io;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import com.google.common.base.Throwables;
+import me.deezee.photonamer.NamerSettings;
+import me.deezee.photonamer.ServiceExecutor;
+import me.deezee.photonamer.cache.DirectoryManifest;
+import me.deezee.photonamer.util.Formatting;
+import me.deezee.photonamer.util.Printer;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// Walks a directory tree with at most one stat per entry, and none for entries it can rule out by name alone.
+// Sub directories may be listed in parallel, in which case files are visited from several threads at once.
+final class PhotoWalker {
+
+    private static final Comparator<Path> BY_NAME = Comparator.comparing(path -> path.getFileName().toString());
+
+    // Walk threads blocked on visiting files are stood in for, up to this many times the parallelism in all
+    private static final int MAX_THREADS_FACTOR = 2;
+
+    private final NamerSettings settings;
+    private final int maxDepth;
+    private final int parallelism;
+
+    // Directories walked so far, so that links pointing back up the tree are not followed forever
+    private final Set<Object> visited = ConcurrentHashMap.newKeySet();
+
+    // What the last run saw, and what this run sees. Both null unless unchanged directories are skipped.
+    private DirectoryManifest previous;
+    private DirectoryManifest next;
+
+    private final LongAdder walked = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder pruned = new LongAdder();
+
+    // Set once the visitor stops the walk, or a parallel walk fails
+    private volatile boolean stopped;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    PhotoWalker(NamerSettings settings, int maxDepth) {
+        this(settings, maxDepth, 1);
+    }
+
+    PhotoWalker(NamerSettings settings, int maxDepth, int parallelism) {
+        Validate.isTrue(parallelism > 0, "Walk parallelism must be at least 1");
+        this.settings = Validate.notNull(settings, "Settings cannot be null");
+        this.maxDepth = maxDepth;
+        this.parallelism = parallelism;
+    }
+
+    // Skips directories that haven't changed since the previous manifest, and records every directory in the next one
+    PhotoWalker withManifest(DirectoryManifest previous, DirectoryManifest next) {
+        this.previous = Validate.notNull(previous, "Previous manifest cannot be null");
+        this.next = Validate.notNull(next, "Next manifest cannot be null");
+        return this;
+    }
+
+    // Returns false if the visitor stopped the walk early
+    boolean walk(Path root, Visitor visitor) throws IOException, InterruptedException {
+        Validate.notNull(root, "Root directory cannot be null");
+        Validate.notNull(visitor, "Visitor cannot be null");
+
+        if (settings.isFollowLinks())
+            enter(root, Files.readAttributes(root, BasicFileAttributes.class));
+
+        // A single directory gains nothing from the pool
+        if (parallelism == 1 || maxDepth == 1) return walk(root, 1, visitor);
+
+        ForkJoinPool pool = ServiceExecutor.newForkJoinPool("namer-walk", parallelism,
+                parallelism * MAX_THREADS_FACTOR);
+        try {
+            pool.submit(new WalkTask(root, 1, visitor)).get();
+        } catch (InterruptedException e) {
+            stopped = true;
+            throw e;
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IOException(e.getCause());
+        } finally {
+            // Wakes up any walker blocked on a full filter queue
+            pool.shutdownNow();
+        }
+
+        Exception failed = failure.get();
+        if (failed instanceof IOException)          throw (IOException) failed;
+        if (failed instanceof InterruptedException) throw (InterruptedException) failed;
+
+        return !stopped;
+    }
+
+    long getWalked() {
+        return walked.sum();
+    }
+
+    long getSkipped() {
+        return skipped.sum();
+    }
+
+    long getPruned() {
+        return pruned.sum();
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    // Visits the given files, all from the same directory, put together into sets the same way as during a walk
+    boolean visit(Collection<Path> entries, Visitor visitor) throws InterruptedException {
+        List<Found> files = new ArrayList<>(entries.size());
+
+        for (Path entry : entries) {
+            walked.increment();
+
+            String name = entry.getFileName().toString();
+            boolean sidecar = settings.isKeepFileSetsTogether() && settings.isSidecar(name);
+            boolean candidate = !sidecar && settings.isCandidate(name);
+
+            BasicFileAttributes attributes = candidate || sidecar ? stat(entry, true) : null;
+            if (attributes == null || !attributes.isRegularFile()) {
+                skipped.increment();
+                continue;
+            }
+
+            files.add(new Found(entry, attributes, candidate));
+        }
+
+        files.sort(Comparator.comparing(found -> found.path, BY_NAME));
+
+        for (FileSet set : group(files))
+            if (!visitor.visit(set)) return false;
+
+        return true;
+    }
+
+    private boolean walk(Path dir, int depth, Visitor visitor) throws IOException, InterruptedException {
+        Listing listing = listOrRecall(dir, depth);
+
+        for (FileSet set : listing.sets)
+            if (!visitor.visit(set)) return false;
+
+        for (Path sub : listing.dirs)
+            if (!walk(sub, depth + 1, visitor)) return false;
+
+        return true;
+    }
+
+    private Listing listOrRecall(Path dir, int depth) throws IOException {
+        if (next == null) return list(dir, depth);
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+        } catch (IOException e) {
+            if (depth == 1) throw e;
+            Printer.debug("Skipping directory '%s': %s", dir, e.toString());
+            return Listing.EMPTY;
+        }
+
+        Optional<DirectoryManifest.Entry> known = previous.get(dir, attributes);
+        if (known.isEmpty()) {
+            Listing listing = list(dir, depth);
+
+            List<String> names = new ArrayList<>(listing.dirs.size());
+            for (Path sub : listing.dirs)
+                names.add(sub.getFileName().toString());
+
+            next.put(dir, attributes, listing.entries, names);
+            return listing;
+        }
+
+        // Nothing was added, removed or renamed in here since the last run, so only its sub directories are walked
+        pruned.increment();
+        next.keep(dir, known.get());
+
+        List<Path> dirs = new ArrayList<>(known.get().getDirectories().size());
+        for (String name : known.get().getDirectories()) {
+            Path sub = dir.resolve(name);
+            if (settings.isFollowLinks()) {
+                BasicFileAttributes subAttributes = stat(sub, false);
+                if (subAttributes == null || !subAttributes.isDirectory() || !enter(sub, subAttributes)) continue;
+            }
+
+            dirs.add(sub);
+        }
+
+        return new Listing(List.of(), dirs, known.get().getChildren());
+    }
+
+    private Listing list(Path dir, int depth) throws IOException {
+        DirectoryStream<Path> entries;
+        try {
+            entries = Files.newDirectoryStream(dir);
+        } catch (IOException e) {
+            // An unreadable sub directory shouldn't stop the rest of the tree from being renamed
+            if (depth == 1) throw e;
+            Printer.debug("Skipping directory '%s': %s", dir, e.toString());
+            return Listing.EMPTY;
+        }
+
+        // The whole directory is listed first, so that files of the same shot can be put together
+        List<Found> files = new ArrayList<>();
+        List<Path> dirs = new ArrayList<>();
+        int children = 0;
+
+        try (entries) {
+            for (Path entry : entries) {
+                walked.increment();
+                children++;
+
+                String name = entry.getFileName().toString();
+                boolean sidecar = settings.isKeepFileSetsTogether() && settings.isSidecar(name);
+                boolean candidate = !sidecar && settings.isCandidate(name);
+
+                // Entries too deep to be descended into only matter if their name matches
+                if (!candidate && !sidecar && depth >= maxDepth) {
+                    skipped.increment();
+                    continue;
+                }
+
+                BasicFileAttributes attributes = stat(entry, candidate || sidecar);
+                if (attributes == null) {
+                    skipped.increment();
+                    continue;
+                }
+
+                if (attributes.isDirectory()) {
+                    if (depth < maxDepth && enter(entry, attributes)) dirs.add(entry);
+                    continue;
+                }
+
+                if ((!candidate && !sidecar) || !attributes.isRegularFile()) {
+                    skipped.increment();
+                    continue;
+                }
+
+                files.add(new Found(entry, attributes, candidate));
+            }
+        } catch (DirectoryIteratorException e) {
+            if (depth == 1) throw e.getCause();
+            Printer.debug("Stopped reading directory '%s': %s", dir, e.getCause().toString());
+        }
+
+        // Listing order differs between file systems, so sort to keep IDs the same from run to run
+        files.sort(Comparator.comparing(found -> found.path, BY_NAME));
+        dirs.sort(BY_NAME);
+
+        return new Listing(group(files), dirs, children);
+    }
+
+    // Tells whether a directory is seen for the first time. Only tracked when links are followed.
+    private boolean enter(Path dir, BasicFileAttributes attributes) {
+        if (!settings.isFollowLinks()) return true;
+
+        Object key = attributes.fileKey();
+        if (key == null) {
+            // File systems without file keys, such as on Windows
+            try {
+                key = dir.toRealPath();
+            } catch (IOException e) {
+                Printer.debug("Skipping directory '%s': %s", dir, e.toString());
+                return false;
+            }
+        }
+
+        if (visited.add(key)) return true;
+
+        Printer.debug("Skipping directory '%s': already walked through another link", dir);
+        return false;
+    }
+
+    private List<FileSet> group(List<Found> files) {
+        List<FileSet> sets = new ArrayList<>();
+
+        if (!settings.isKeepFileSetsTogether()) {
+            for (Found found : files)
+                sets.add(FileSet.of(found.path, found.attributes));
+
+            return sets;
+        }
+
+        Map<String, List<Found>> stems = new LinkedHashMap<>();
+        for (Found found : files)
+            stems.computeIfAbsent(stem(found), stem -> new ArrayList<>()).add(found);
+
+        for (List<Found> members : stems.values()) {
+            // When names can't be trusted, files sharing a stem are sniffed before one of them is chosen,
+            // so that a document next to a photo neither names the set nor moves along with it
+            if (members.size() > 1 && settings.getImageDetection().sniffs()) {
+                int before = members.size();
+                members.removeIf(found -> found.image && !isImage(found));
+                skipped.add(before - members.size());
+            }
+
+            // A RAW file names the set if there is one, otherwise the first photo does
+            Found primary = null;
+            for (Found found : members) {
+                if (!found.image) continue;
+                if (primary == null || (settings.isRaw(name(found)) && !settings.isRaw(name(primary))))
+                    primary = found;
+            }
+
+            // Sidecars without their photo are left alone
+            if (primary == null) {
+                skipped.add(members.size());
+                continue;
+            }
+
+            List<Path> companions = new ArrayList<>(members.size() - 1);
+            for (Found found : members)
+                if (found != primary)
+                    companions.add(found.path);
+
+            sets.add(new FileSet(primary.path, primary.attributes, companions));
+        }
+
+        return sets;
+    }
+
+    // Sniffed types are cached, so the filter stage doesn't read the file again
+    private boolean isImage(Found found) {
+        try {
+            return settings.isImage(found.path, found.attributes);
+        } catch (IOException e) {
+            Printer.debug("Skipping '%s': %s", found.path, e.toString());
+            return false;
+        }
+    }
+
+    private String stem(Found found) {
+        String name = name(found);
+        if (found.image) return Formatting.getFilenameComponents(name).getKey();
+
+        // Sidecars are named either "IMG_0001.xmp" or "IMG_0001.CR2.xmp"
+        String stem = Formatting.getFilenameComponents(name).getKey();
+        return settings.isImage(stem) || settings.isRaw(stem) ? Formatting.getFilenameComponents(stem).getKey() : stem;
+    }
+
+    private static String name(Found found) {
+        return found.path.getFileName().toString();
+    }
+
+    private BasicFileAttributes stat(Path entry, boolean candidate) {
+        try {
+            // Unless asked to, links to directories are never followed, the same as Files.walk
+            BasicFileAttributes attributes = Files.readAttributes(
+                    entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+
+            // Links to photos are still renamed, which does take a second stat
+            if (attributes.isSymbolicLink() && (candidate || settings.isFollowLinks())) {
+                attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                if (attributes.isDirectory() && !settings.isFollowLinks()) return null;
+            }
+
+            return attributes;
+        } catch (IOException e) {
+            Printer.debug("Skipping '%s': %s", entry, e.toString());
+            return null;
+        }
+    }
+
+    private static final class Found {
+
+        private final Path path;
+        private final BasicFileAttributes attributes;
+        private final boolean image;
+
+        private Found(Path path, BasicFileAttributes attributes, boolean image) {
+            this.path = path;
+            this.attributes = attributes;
+            this.image = image;
+        }
+    }
+
+    private static final class Listing {
+
+        private static final Listing EMPTY = new Listing(List.of(), List.of(), 0);
+
+        private final List<FileSet> sets;
+        private final List<Path> dirs;
+        private final int entries;
+
+        private Listing(List<FileSet> sets, List<Path> dirs, int entries) {
+            this.sets = sets;
+            this.dirs = dirs;
+            this.entries = entries;
+        }
+    }
+
+    private final class WalkTask extends RecursiveAction {
+
+        private final Path dir;
+        private final int depth;
+        private final Visitor visitor;
+
+        private WalkTask(Path dir, int depth, Visitor visitor) {
+            this.dir = dir;
+            this.depth = depth;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (stopped) return;
+
+            Listing listing;
+            try {
+                listing = listOrRecall(dir, depth);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+
+            // Sub directories are handed out first, so that idle threads list them while these files are visited
+            List<WalkTask> subs = new ArrayList<>(listing.dirs.size());
+            for (Path sub : listing.dirs)
+                subs.add(new WalkTask(sub, depth + 1, visitor));
+
+            for (WalkTask sub : subs)
+                sub.fork();
+
+            // Visiting blocks while the filter queue is full or the process is paused. The pool is told,
+            // so that a spare thread carries on listing meanwhile.
+            try {
+                ForkJoinPool.managedBlock(new Visit(listing.sets, visitor));
+            } catch (InterruptedException e) {
+                fail(e);
+            }
+
+            // Joined newest first, so that this thread runs whatever nobody else has picked up yet
+            for (int i = subs.size() - 1; i >= 0; i--)
+                subs.get(i).join();
+        }
+
+        private void fail(Exception e) {
+            failure.compareAndSet(null, e);
+            stopped = true;
+        }
+    }
+
+    // Visits the file sets of one listing, for as long as the visitor blocks
+    private final class Visit implements ForkJoinPool.ManagedBlocker {
+
+        private final List<FileSet> sets;
+        private final Visitor visitor;
+        private boolean done;
+
+        private Visit(List<FileSet> sets, Visitor visitor) {
+            this.sets = sets;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            for (FileSet set : sets) {
+                if (stopped) break;
+                if (!visitor.visit(set)) stopped = true;
+            }
+
+            done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            // Directories without files have nothing to block on
+            return done || stopped || sets.isEmpty();
+        }
+    }
+
+    interface Visitor {
+
+        boolean visit(FileSet set) throws InterruptedException;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import me.deezee.photonamer.util.Printer;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+final class PipelineStage {
+
+    private final NamerStage stage;
+    private final int threads;
+    private final int capacity;
+    private final BlockingQueue<RenameJob> queue;
+    private final BatchWork work;
+    private final int batchSize;
+    private final AtomicReference<Exception> error;
+    private final AtomicInteger running;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private volatile long startNanos;
+    private volatile long finishNanos;
+
+    private PipelineStage next;
+
+    PipelineStage(NamerStage stage, int threads, int capacity,
+                  Work work, AtomicReference<Exception> error) {
+        this(stage, threads, capacity, 1, BatchWork.of(Validate.notNull(work)), error);
+    }
+
+    // Takes up to the given number of jobs off the queue at once, as many as are waiting, and works on them together
+    PipelineStage(NamerStage stage, int threads, int capacity, int batchSize,
+                  BatchWork work, AtomicReference<Exception> error) {
+        Validate.isTrue(threads > 0, "A stage needs at least one thread");
+        Validate.isTrue(capacity > 0, "A stage queue needs a capacity of at least 1");
+        Validate.isTrue(batchSize > 0, "A stage batch needs a size of at least 1");
+
+        this.stage = Validate.notNull(stage);
+        this.threads = threads;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.work = Validate.notNull(work);
+        this.batchSize = batchSize;
+        this.error = Validate.notNull(error);
+        this.running = new AtomicInteger(threads);
+    }
+
+    NamerStage getStage() {
+        return stage;
+    }
+
+    PipelineStage then(PipelineStage next) {
+        this.next = next;
+        return next;
+    }
+
+    void start(ExecutorService pool) {
+        startNanos = System.nanoTime();
+        for (int i = 0; i < threads; i++)
+            pool.submit(this::loop);
+    }
+
+    void submit(RenameJob job) throws InterruptedException {
+        // Blocks while the queue is full, which throttles everything upstream
+        queue.put(job);
+        peakDepth.accumulateAndGet(queue.size(), Math::max);
+    }
+
+    void end() throws InterruptedException {
+        queue.put(RenameJob.END);
+    }
+
+    void await() throws InterruptedException {
+        done.await();
+    }
+
+    StageStats getStats() {
+        long finish = finishNanos == 0 ? System.nanoTime() : finishNanos;
+        return new StageStats(stage, threads, capacity, peakDepth.get(),
+                processed.sum(), dropped.sum(), finish - startNanos);
+    }
+
+    private void loop() {
+        try {
+            List<RenameJob> jobs = new ArrayList<>(batchSize);
+            while (true) {
+                // Never waits for a batch to fill up, only takes whatever is queued already
+                jobs.clear();
+                jobs.add(queue.take());
+                if (batchSize > 1) queue.drainTo(jobs, batchSize - 1);
+
+                // Nothing is queued after the marker, other than the marker again
+                int end = jobs.indexOf(RenameJob.END);
+                if (end >= 0) jobs.subList(end, jobs.size()).clear();
+
+                List<RenameJob> prepared = new ArrayList<>(jobs.size());
+                for (RenameJob job : jobs) {
+                    processed.increment();
+                    if (attempt(work::prepare, job)) prepared.add(job);
+                }
+
+                if (!prepared.isEmpty()) work.between(prepared);
+
+                for (RenameJob job : prepared)
+                    if (attempt(work::finish, job) && next != null)
+                        next.submit(job);
+
+                if (end >= 0) {
+                    // Leave the marker behind for the other workers of this stage
+                    queue.put(RenameJob.END);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // The last worker out signals the end of the stream downstream
+            if (running.decrementAndGet() == 0) {
+                finishNanos = System.nanoTime();
+                try {
+                    if (next != null) next.end();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+    }
+
+    private boolean attempt(Work step, RenameJob job) {
+        boolean keep = false;
+        try {
+            keep = step.process(job);
+        } catch (Exception e) {
+            // This particular one failed, save it, if it hasn't occurred already
+            error.compareAndSet(null, e);
+
+            // Log error if available
+            Printer.debug("Failed at %s for (#%d) '%s': %s", stage, job.id, job.input, e.toString());
+        }
+
+        if (!keep) dropped.increment();
+        return keep;
+    }
+
+    @FunctionalInterface
+    interface Work {
+
+        // Returns false to drop the job from the pipeline
+        boolean process(RenameJob job) throws Exception;
+    }
+
+    // Work done in two steps, every job of a batch being prepared before any is finished
+    interface BatchWork {
+
+        // Returns false to drop the job from the pipeline
+        boolean prepare(RenameJob job) throws Exception;
+
+        // Done once for the jobs prepared, before finishing any of them
+        void between(List<RenameJob> prepared);
+
+        // Returns false to drop the job from the pipeline
+        boolean finish(RenameJob job) throws Exception;
+
+        static BatchWork of(Work work) {
+            return new BatchWork() {
+                @Override
+                public boolean prepare(RenameJob job) throws Exception {
+                    return work.process(job);
+                }
+
+                @Override
+                public void between(List<RenameJob> prepared) {}
+
+                @Override
+                public boolean finish(RenameJob job) {
+                    return true;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import com.google.common.collect.ImmutableMap;
+import me.deezee.photonamer.NamerSettings;
+import me.deezee.photonamer.PhotoWrapper;
+import me.deezee.photonamer.format.NamerFormat;
+import me.deezee.photonamer.format.NamerFormat.DataSource;
+import me.deezee.photonamer.format.NamerTemplate;
+import me.deezee.photonamer.util.ContentHash;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class ReadPlan {
+
+    private static final Map<NamerFormat.Var, ContentHash> HASH_VARS = ImmutableMap.of(
+            NamerFormat.Var.SHA256, ContentHash.SHA256,
+            NamerFormat.Var.XXH64,  ContentHash.XXH64);
+
+    private final Set<DataSource> sources;
+    private final Set<ContentHash> hashes;
+
+    // Bytes of metadata read, summed over all photos
+    private final LongAdder metadataBytes = new LongAdder();
+
+    // Hashing throughput, summed over all workers
+    private final LongAdder hashedBytes = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+
+    private ReadPlan(Set<DataSource> sources, Set<ContentHash> hashes) {
+        this.sources = Collections.unmodifiableSet(sources);
+        this.hashes = Collections.unmodifiableSet(hashes);
+    }
+
+    public static ReadPlan of(NamerSettings settings) {
+        Validate.notNull(settings, "Settings cannot be null");
+
+        NamerTemplate template = settings.getFormatting().getTemplate();
+        Set<DataSource> sources = EnumSet.noneOf(DataSource.class);
+        sources.addAll(template.getDataSources());
+
+        // Photos without a taken date fall back to the file creation date
+        if (sources.contains(DataSource.EXIF))
+            sources.add(DataSource.ATTRIBUTES);
+
+        // The filter needs the metadata of every photo, whatever the template says
+        if (settings.isFilterDateTimeTakenOnly())
+            sources.add(DataSource.EXIF);
+
+        // Contents are only hashed for the hash variables the template actually uses
+        Set<ContentHash> hashes = EnumSet.noneOf(ContentHash.class);
+        for (NamerFormat.Var var : template.getVariables())
+            if (HASH_VARS.containsKey(var))
+                hashes.add(HASH_VARS.get(var));
+
+        sources.remove(DataSource.NONE);
+        return new ReadPlan(sources, hashes);
+    }
+
+    public boolean needs(DataSource source) {
+        return sources.contains(source);
+    }
+
+    public Set<DataSource> getSources() {
+        return sources;
+    }
+
+    public Set<ContentHash> getHashes() {
+        return hashes;
+    }
+
+    public long getMetadataBytes() {
+        return metadataBytes.sum();
+    }
+
+    public long getHashedBytes() {
+        return hashedBytes.sum();
+    }
+
+    public long getHashTime(TimeUnit unit) {
+        return unit.convert(hashNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    // Reads everything the plan needs up front, and nothing more
+    public void load(PhotoWrapper photo) {
+        if (needs(DataSource.ATTRIBUTES))   photo.getAttributes();
+        if (needs(DataSource.EXIF)) {
+            photo.getCachedMetadata();
+            metadataBytes.add(photo.getMetadataBytesRead());
+        }
+
+        if (needs(DataSource.CONTENT)) {
+            long start = System.nanoTime();
+            photo.loadContentHashes(hashes);
+
+            hashNanos.add(System.nanoTime() - start);
+            hashedBytes.add(photo.size());
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (sources.isEmpty()) return "[no file reads]";
+        return hashes.isEmpty() ? sources.toString() : sources + " " + hashes;
+    }
+}
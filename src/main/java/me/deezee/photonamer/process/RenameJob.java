@@ -0,0 +1,46 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import me.deezee.photonamer.PhotoWrapper;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+
+final class RenameJob {
+
+    // Marks the end of the stream for a pipeline stage
+    static final RenameJob END = new RenameJob(-1, FileSet.of(null, null));
+
+    final int id;
+    final Path input;
+
+    // Handed over by the walk, so that the file never has to be stat'ed again
+    final BasicFileAttributes attributes;
+
+    // Sidecars and other formats of the same shot, moved along with the input
+    final List<Path> companions;
+
+    // Filled in by the stages as the job travels through the pipeline
+    PhotoWrapper photo;
+    Pair<String, String> name;
+    Map<Path, Path> targets;
+
+    // Claimed by the move stage ahead of the move, and the journal record of the move
+    TargetRegistry.Claim claim;
+    int record;
+
+    RenameJob(int id, FileSet set) {
+        this.id = id;
+        this.input = set.primary;
+        this.attributes = set.attributes;
+        this.companions = set.companions;
+    }
+}
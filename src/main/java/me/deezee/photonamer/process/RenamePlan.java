@@ -0,0 +1,260 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every rename of a run, worked out before anything is moved.
+ *
+ * <p>Targets may be the sources of other renames, which is fine as long as
+ * those are moved out of the way first.  The plan orders the moves so that
+ * each one only goes to a free name: chains (A to B while B goes to C) are
+ * moved from their far end, and cycles (A to B while B goes to A) are broken
+ * by parking one file under a temporary name until the rest have moved.</p>
+ *
+ * <p>The moves are grouped by the chain or cycle they belong to, so that a
+ * failure only holds up the moves depending on it.  Groups never depend on
+ * each other, and may be carried out side by side.</p>
+ */
+public final class RenamePlan {
+
+    private static final String TEMP_PREFIX = ".photonamer-swap-";
+
+    private final List<Entry> entries;
+    private final List<List<Step>> groups;
+    private final int chains;
+    private final int cycles;
+
+    private RenamePlan(List<Entry> entries, List<List<Step>> groups, int chains, int cycles) {
+        this.entries = entries;
+        this.groups = groups;
+        this.chains = chains;
+        this.cycles = cycles;
+    }
+
+    static RenamePlan of(List<Entry> entries) {
+        Validate.noNullElements(entries, "Plan entries cannot be null");
+
+        // Reverse index: which move has to leave a name before another move can take it
+        List<Step> moves = new ArrayList<>();
+        Map<Path, Step> bySource = new HashMap<>();
+        for (Entry entry : entries) {
+            for (Map.Entry<Path, Path> file : entry.files.entrySet()) {
+                // Already named as planned
+                if (file.getKey().equals(file.getValue())) continue;
+
+                Step move = new Step(entry, file.getKey(), file.getKey(), file.getValue());
+                Validate.isTrue(bySource.put(move.from, move) == null, "'%s' is planned twice", move.from);
+                moves.add(move);
+            }
+        }
+
+        Set<Path> targets = new HashSet<>();
+        for (Step move : moves)
+            Validate.isTrue(targets.add(move.to), "'%s' is the target of more than one file", move.to);
+
+        // Chains are followed from their first move, so that each one ends up whole in a single group.
+        // Whatever is left after that belongs to a cycle.
+        List<Step> starts = new ArrayList<>(moves.size());
+        for (Step move : moves)
+            if (!targets.contains(move.from))
+                starts.add(move);
+        for (Step move : moves)
+            if (targets.contains(move.from))
+                starts.add(move);
+
+        List<List<Step>> groups = new ArrayList<>();
+        Set<Step> planned = new HashSet<>();
+        int chains = 0;
+        int cycles = 0;
+        int temps = 0;
+
+        for (Step move : starts) {
+            if (planned.contains(move)) continue;
+
+            // Follow the files standing in the way. Since no two moves share a target, a file can only
+            // stand in the way of a single move, so this either ends at a free name or comes back around.
+            List<Step> chain = new ArrayList<>();
+            chain.add(move);
+
+            boolean cycle = false;
+            for (Step blocker = bySource.get(move.to); blocker != null && !planned.contains(blocker);
+                 blocker = bySource.get(blocker.to)) {
+                if (blocker == move) {
+                    cycle = true;
+                    break;
+                }
+
+                chain.add(blocker);
+            }
+
+            planned.addAll(chain);
+
+            List<Step> group = new ArrayList<>(chain.size() + 1);
+            if (cycle) {
+                // Park the first file, move the rest round, then put the parked file in its place
+                Path temp = move.from.resolveSibling(TEMP_PREFIX + temps++);
+                group.add(new Step(move.entry, move.source, move.from, temp));
+                for (int i = chain.size() - 1; i > 0; i--)
+                    group.add(chain.get(i));
+                group.add(new Step(move.entry, move.source, temp, move.to));
+                cycles++;
+            } else {
+                // The last file of the chain goes to a free name, which frees up the one before it
+                for (int i = chain.size() - 1; i >= 0; i--)
+                    group.add(chain.get(i));
+                if (chain.size() > 1) chains++;
+            }
+
+            groups.add(Collections.unmodifiableList(group));
+        }
+
+        return new RenamePlan(List.copyOf(entries), List.copyOf(groups), chains, cycles);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    // Number of files to be moved, not counting those already named as planned
+    public int getMoveCount() {
+        int count = 0;
+        for (List<Step> group : groups)
+            for (Step step : group)
+                if (!step.isParking()) count++;
+
+        return count;
+    }
+
+    public int getChainCount() {
+        return chains;
+    }
+
+    public int getCycleCount() {
+        return cycles;
+    }
+
+    List<List<Step>> getGroups() {
+        return groups;
+    }
+
+    // Writes the plan out as a tab separated dry run report, one line per file in the order they would be moved
+    public void export(Path report) throws IOException {
+        Validate.notNull(report, "Report file cannot be null");
+
+        try (BufferedWriter out = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+            out.write(String.format("# %d photo(s), %d file(s) to move, %d chain(s), %d cycle(s)%n",
+                    entries.size(), getMoveCount(), chains, cycles));
+            out.write("id\tsource\ttarget\tnote");
+            out.newLine();
+
+            for (List<Step> group : groups) {
+                String note = group.size() == 1 ? "" : group.get(0).isParking() ? "cycle" : "chain";
+                for (Step step : group) {
+                    out.write(step.entry.id + "\t" + step.from + "\t" + step.to + "\t"
+                            + (step.isParking() ? "temporary" : note));
+                    out.newLine();
+                }
+            }
+
+            for (Entry entry : entries) {
+                for (Map.Entry<Path, Path> file : entry.files.entrySet()) {
+                    if (!file.getKey().equals(file.getValue())) continue;
+
+                    out.write(entry.id + "\t" + file.getKey() + "\t" + file.getValue() + "\tunchanged");
+                    out.newLine();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d photo(s), %d file(s) to move, %d chain(s), %d cycle(s)",
+                entries.size(), getMoveCount(), chains, cycles);
+    }
+
+    // A photo and its companions, with where each of them goes
+    public static final class Entry {
+
+        private final int id;
+        private final Path source;
+        private final Map<Path, Path> files;
+
+        Entry(int id, Path source, Map<Path, Path> files) {
+            Validate.isTrue(files.containsKey(source), "The photo itself has to be planned");
+
+            this.id = id;
+            this.source = source;
+            this.files = Collections.unmodifiableMap(new LinkedHashMap<>(files));
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public Path getTarget() {
+            return files.get(source);
+        }
+
+        public Map<Path, Path> getFiles() {
+            return files;
+        }
+
+        public boolean isUnchanged() {
+            for (Map.Entry<Path, Path> file : files.entrySet())
+                if (!file.getKey().equals(file.getValue())) return false;
+
+            return true;
+        }
+    }
+
+    static final class Step {
+
+        final Entry entry;
+
+        // Where the file was before the plan, and where it goes in this step
+        final Path source;
+        final Path from;
+        final Path to;
+
+        private Step(Entry entry, Path source, Path from, Path to) {
+            this.entry = entry;
+            this.source = source;
+            this.from = from;
+            this.to = to;
+        }
+
+        // Whether this step leaves the file at the target the plan has for it
+        boolean isFinal() {
+            return to.equals(entry.files.get(source));
+        }
+
+        boolean isParking() {
+            return to.getFileName().toString().startsWith(TEMP_PREFIX);
+        }
+    }
+}
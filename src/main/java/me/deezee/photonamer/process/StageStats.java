@@ -0,0 +1,72 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.concurrent.TimeUnit;
+
+public final class StageStats {
+
+    private final NamerStage stage;
+    private final int threads;
+    private final int capacity;
+    private final int peakQueueDepth;
+    private final long processed;
+    private final long dropped;
+    private final long elapsedNanos;
+
+    StageStats(NamerStage stage, int threads, int capacity, int peakQueueDepth,
+               long processed, long dropped, long elapsedNanos) {
+        this.stage = Validate.notNull(stage, "Stage cannot be null");
+        this.threads = threads;
+        this.capacity = capacity;
+        this.peakQueueDepth = peakQueueDepth;
+        this.processed = processed;
+        this.dropped = dropped;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public NamerStage getStage() {
+        return stage;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    public int getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getTime(TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public double getThroughput() {
+        // Items per second
+        return elapsedNanos == 0 ? 0 : processed * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d processed, %d dropped, %.1f/s, peak queue %d/%d, %d thread(s)",
+                stage, processed, dropped, getThroughput(), peakQueueDepth, capacity, threads);
+    }
+}
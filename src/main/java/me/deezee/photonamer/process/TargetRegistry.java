@@ -0,0 +1,300 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import me.deezee.photonamer.util.Printer;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out unique target names for renamed photos, so that finding a free
+ * name never has to go through the file system.
+ *
+ * <p>Each output folder is listed once, the first time a name in it is asked
+ * for, and created at that point if it doesn't exist yet.  From then on, every
+ * name handed out is remembered together with the names found on disk, and the
+ * next free conflict suffix of each name is tracked so that a burst of photos
+ * sharing one name doesn't probe every suffix again.  Files showing up from
+ * outside the process after the listing are still caught by the move itself,
+ * see {@link Claim#collided()}.</p>
+ *
+ * <p>Forgotten names stay taken, since their files are still on disk.  Once
+ * every name handed out in a folder has been forgotten, the folder itself is
+ * dropped, and listed again the next time a name in it is asked for.</p>
+ */
+public final class TargetRegistry {
+
+    private final Map<Path, Folder> folders = new ConcurrentHashMap<>();
+
+    // Off while planning, where nothing on disk may change yet
+    private final boolean createFolders;
+
+    private final LongAdder listed = new LongAdder();
+    private final LongAdder claims = new LongAdder();
+    private final LongAdder collisions = new LongAdder();
+
+    public TargetRegistry() {
+        this(true);
+    }
+
+    public TargetRegistry(boolean createFolders) {
+        this.createFolders = createFolders;
+    }
+
+    /*
+     * Claims the name, or the name with the lowest free conflict suffix, for every tail at once.
+     * The name may start with a group folder, which is created if needed. The first tail is
+     * usually the extension of the photo, and the others those of its companions.
+     */
+    public Claim claim(Path outputDir, String name, List<String> tails) throws IOException {
+        return claim(outputDir, name, tails, List.of());
+    }
+
+    /*
+     * Same as above, for the files about to be moved to the claimed names. Their own names count as
+     * free, so that a photo which already has the name it is given keeps it, rather than moving
+     * aside for itself as "name (1)" on every run over the same folder.
+     */
+    public Claim claim(Path outputDir, String name, List<String> tails, Collection<Path> sources) throws IOException {
+        Validate.notNull(outputDir, "Output directory cannot be null");
+        Validate.notNull(name, "Name cannot be null");
+        Validate.notEmpty(tails, "At least one tail is needed");
+        Validate.notNull(sources, "Sources cannot be null");
+
+        Path named = outputDir.resolve(name);
+        Path dir = key(named.getParent());
+
+        Set<String> own = new HashSet<>();
+        for (Path source : sources)
+            if (key(source.getParent()).equals(dir))
+                own.add(source.getFileName().toString());
+
+        // A folder dropped in the meantime is simply listed again
+        Claim claim;
+        do {
+            claim = folder(dir).claim(named.getFileName().toString(), tails, own);
+        } while (claim == null);
+
+        claims.increment();
+        return claim;
+    }
+
+    // Frees the name of a file that is going to be moved away, so that it can be handed out again
+    public void vacate(Path file) throws IOException {
+        folder(file.getParent()).vacate(file.getFileName().toString());
+    }
+
+    // Whether the file is one that this registry has handed out
+    public boolean isClaimed(Path file) {
+        Folder folder = folders.get(key(file.getParent()));
+        return folder != null && folder.isClaimed(file.getFileName().toString());
+    }
+
+    // Drops names that don't need claiming any more, such as those of renames long done while watching
+    public void forget(Collection<Path> files) {
+        for (Path file : files) {
+            Folder folder = folders.get(key(file.getParent()));
+            if (folder != null && folder.forget(file.getFileName().toString())) folders.remove(folder.dir, folder);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d folder(s) listed, %d name(s) handed out, %d clash(es) found on disk",
+                listed.sum(), claims.sum(), collisions.sum());
+    }
+
+    private Folder folder(Path dir) throws IOException {
+        Folder folder = folders.computeIfAbsent(key(dir), Folder::new);
+        folder.load();
+        return folder;
+    }
+
+    private static Path key(Path dir) {
+        return dir.toAbsolutePath().normalize();
+    }
+
+    private static String nameOf(String base, int suffix, String tail) {
+        return (suffix == 0 ? base : base + " (" + suffix + ")") + tail;
+    }
+
+    private final class Folder {
+
+        private final Path dir;
+
+        // Every name known to be in use, whether found on disk or handed out
+        private final Set<String> taken = new HashSet<>();
+
+        // Only the names handed out
+        private final Set<String> claimed = ConcurrentHashMap.newKeySet();
+
+        // Lowest conflict suffix of each name which might still be free
+        private final Map<String, Integer> nextSuffix = new HashMap<>();
+
+        private boolean loaded;
+
+        // Set once the folder is dropped, after which a fresh listing hands out its names
+        private boolean dropped;
+
+        private Folder(Path dir) {
+            this.dir = dir;
+        }
+
+        private synchronized void load() throws IOException {
+            if (loaded) return;
+
+            if (Files.isDirectory(dir)) {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    for (Path entry : entries)
+                        taken.add(entry.getFileName().toString());
+                } catch (DirectoryIteratorException e) {
+                    throw e.getCause();
+                }
+            } else if (createFolders) {
+                // Group folders are created once, by whichever worker needs them first
+                Files.createDirectories(dir);
+            }
+
+            loaded = true;
+            listed.increment();
+            Printer.debug("Listed output folder '%s': %d name(s) in use", dir, taken.size());
+        }
+
+        private synchronized Claim claim(String base, List<String> tails, Set<String> own) {
+            if (dropped) return null;
+
+            int next = nextSuffix.getOrDefault(base, 0);
+
+            // A file keeps the suffix it already has, even below the next one handed out
+            int suffix = ownSuffix(base, tails.get(0), own);
+            if (suffix < 0 || !isFree(base, suffix, tails, own)) {
+                suffix = next;
+                while (!isFree(base, suffix, tails, own))
+                    suffix++;
+            }
+
+            List<Path> targets = new ArrayList<>(tails.size());
+            for (String tail : tails) {
+                String name = nameOf(base, suffix, tail);
+                taken.add(name);
+                claimed.add(name);
+                targets.add(dir.resolve(name));
+            }
+
+            if (suffix == next) nextSuffix.put(base, suffix + 1);
+            return new Claim(this, base, suffix, targets);
+        }
+
+        private boolean isFree(String base, int suffix, List<String> tails, Set<String> own) {
+            for (String tail : tails) {
+                String name = nameOf(base, suffix, tail);
+                if (taken.contains(name) && (!own.contains(name) || claimed.contains(name)))
+                    return false;
+            }
+
+            return true;
+        }
+
+        // The suffix under which one of the files already has the name, or -1 if none does
+        private int ownSuffix(String base, String tail, Set<String> own) {
+            for (String name : own) {
+                if (!name.startsWith(base) || !name.endsWith(tail)) continue;
+                if (name.length() < base.length() + tail.length()) continue;
+
+                String middle = name.substring(base.length(), name.length() - tail.length());
+                if (middle.isEmpty()) return 0;
+                if (middle.matches(" \\([1-9][0-9]{0,8}\\)"))
+                    return Integer.parseInt(middle.substring(2, middle.length() - 1));
+            }
+
+            return -1;
+        }
+
+        private boolean isClaimed(String name) {
+            return claimed.contains(name);
+        }
+
+        private synchronized void release(Claim claim, boolean onDisk) {
+            for (Path target : claim.targets) {
+                String name = target.getFileName().toString();
+                claimed.remove(name);
+
+                // Names found taken on disk stay taken, so that they aren't handed out again
+                if (!onDisk) taken.remove(name);
+            }
+
+            // The suffix can be handed out again, unless the disk says otherwise
+            if (!onDisk) nextSuffix.merge(claim.base, claim.suffix, Math::min);
+        }
+
+        private void collided(Claim claim) {
+            collisions.increment();
+            release(claim, true);
+        }
+
+        private synchronized void vacate(String name) {
+            if (!claimed.contains(name)) taken.remove(name);
+        }
+
+        // The file is still there, so its name stays taken. Returns whether the folder is dropped.
+        private synchronized boolean forget(String name) {
+            claimed.remove(name);
+            if (!claimed.isEmpty()) return false;
+
+            dropped = true;
+            return true;
+        }
+    }
+
+    public static final class Claim {
+
+        private final Folder folder;
+        private final String base;
+        private final int suffix;
+        private final List<Path> targets;
+
+        private Claim(Folder folder, String base, int suffix, List<Path> targets) {
+            this.folder = folder;
+            this.base = base;
+            this.suffix = suffix;
+            this.targets = List.copyOf(targets);
+        }
+
+        // One target per tail, in the same order
+        public List<Path> getTargets() {
+            return targets;
+        }
+
+        public int getSuffix() {
+            return suffix;
+        }
+
+        // Nothing was moved to these names after all
+        public void release() {
+            folder.release(this, false);
+        }
+
+        // Something outside the process took one of these names after the folder was listed
+        public void collided() {
+            folder.collided(this);
+        }
+    }
+}
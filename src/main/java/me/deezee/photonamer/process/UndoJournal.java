@@ -0,0 +1,421 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingInputStream;
+import me.deezee.photonamer.ServiceExecutor;
+import me.deezee.photonamer.util.Printer;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Append-only record of every file moved by a run, so that the run can still
+ * be undone after the application has been closed, or has died.  It is kept
+ * in the output folder, next to the files it can put back.
+ *
+ * <p>A move is recorded as planned, and the journal committed, before the
+ * move is made, so that nothing is moved without its record on disk.  It is
+ * recorded as done once it has been.  Commits are shared: whoever syncs next
+ * takes along every record added by then, so that movers committing at the
+ * same time wait for a single sync.  Done records are never waited for, and
+ * go out with the next commit, or after a few moments.  A move that is on record as planned but not
+ * as done is settled by looking at the disk.</p>
+ *
+ * <p>Paths map each file to where it is now.  A file mapped to itself is back
+ * where it was before the run.</p>
+ */
+public final class UndoJournal {
+
+    private static final String PREFIX = ".photonamer-undo-";
+    private static final String SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x504E554A; // "PNUJ"
+    private static final int VERSION = 1;
+
+    private static final byte PLANNED = 1;
+    private static final byte DONE = 2;
+
+    // Done records left over once moving stops are written out this long after
+    private static final long GROUP_MILLIS = 100;
+
+    private final Path file;
+
+    // Every photo of the journal that can still be undone, as it was on disk when the journal was opened
+    private final Map<Path, Map<Path, Path>> history = new LinkedHashMap<>();
+
+    // Records not written out yet
+    private final ByteArrayOutputStream group = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(group);
+    private int sequence;
+
+    // Records added so far, and how many of them are on disk. Only one thread syncs at a time.
+    private long added;
+    private long synced;
+    private boolean syncing;
+
+    private FileChannel channel;
+    private ScheduledFuture<?> committer;
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+
+    private UndoJournal(Path file) {
+        this.file = file;
+    }
+
+    // Starts a new journal for renaming the directory into the output, replacing whatever an earlier run left behind
+    public static UndoJournal create(Path root, Path output) {
+        UndoJournal journal = new UndoJournal(fileFor(key(root), output));
+
+        try {
+            Files.createDirectories(journal.file.getParent());
+            journal.open(StandardOpenOption.TRUNCATE_EXISTING);
+            journal.writeHeader(key(root));
+            journal.commit();
+        } catch (IOException e) {
+            // Renaming still works, it just can't be undone after closing the application
+            Printer.log("Could not create undo journal '%s': %s", journal.file, e.getMessage());
+            journal.close();
+        }
+
+        return journal;
+    }
+
+    // Carries on with the journal of the directory, and reads back what can still be undone
+    public static UndoJournal open(Path root, Path output) {
+        UndoJournal journal = new UndoJournal(fileFor(key(root), output));
+
+        try {
+            boolean fresh = !journal.load(key(root));
+            if (fresh) Files.createDirectories(journal.file.getParent());
+
+            journal.open(fresh ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+            if (fresh) journal.writeHeader(key(root));
+        } catch (IOException e) {
+            Printer.log("Could not open undo journal '%s': %s", journal.file, e.getMessage());
+            journal.close();
+        }
+
+        return journal;
+    }
+
+    public static boolean exists(Path root, Path output) {
+        return Files.isRegularFile(fileFor(key(root), output));
+    }
+
+    // Forgets the journal of the directory, once there is nothing left to undo
+    public static void discard(Path root, Path output) {
+        Path file = fileFor(key(root), output);
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Printer.log("Could not delete undo journal '%s': %s", file, e.getMessage());
+        }
+    }
+
+    // Records files about to be moved, which are only moved once committed. Returns the number to mark them done with
+    public int planned(Path photo, Map<Path, Path> files) {
+        int planned;
+        synchronized (this) {
+            planned = sequence++;
+
+            try {
+                out.writeByte(PLANNED);
+                out.writeInt(planned);
+                write(photo, files);
+            } catch (IOException impossible) {
+                // Only written to memory here
+            }
+
+            added++;
+        }
+
+        records.increment();
+        return planned;
+    }
+
+    public void done(int planned) {
+        synchronized (this) {
+            try {
+                out.writeByte(DONE);
+                out.writeInt(planned);
+            } catch (IOException impossible) {
+                // Only written to memory here
+            }
+
+            added++;
+        }
+
+        records.increment();
+    }
+
+    // Writes out and syncs everything recorded so far, along with whatever others have recorded by then
+    public void commit() {
+        long record;
+        synchronized (this) {
+            record = added;
+        }
+
+        sync(record);
+    }
+
+    public void close() {
+        if (committer != null) committer.cancel(false);
+        commit();
+
+        synchronized (this) {
+            if (channel != null) {
+                Printer.debug("Undo journal: %d record(s) in %d commit(s), %.1fms spent syncing",
+                        records.sum(), commits.sum(), commitNanos.sum() / 1e6);
+            }
+
+            closeChannel();
+        }
+    }
+
+    public static boolean isJournal(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    public Map<Path, Map<Path, Path>> getHistory() {
+        return Collections.unmodifiableMap(history);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    // Returns once the given record is on disk, syncing it along with everything added before it if no one else is
+    private void sync(long record) {
+        byte[] pending;
+        long upTo;
+        FileChannel channel;
+
+        synchronized (this) {
+            boolean interrupted = false;
+            while (synced < record && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // A sync takes moments, and the move waiting on it must not go ahead without it
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) Thread.currentThread().interrupt();
+            if (synced >= record) return;
+
+            syncing = true;
+            pending = group.toByteArray();
+            group.reset();
+            upTo = added;
+            channel = this.channel;
+        }
+
+        // Written out without holding the lock, so that other movers can add their records meanwhile
+        try {
+            if (channel != null) write(channel, pending);
+        } finally {
+            synchronized (this) {
+                synced = upTo;
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(FileChannel channel, byte[] pending) {
+        long start = System.nanoTime();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(pending);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            // One sync for the whole group, rather than one per move
+            channel.force(false);
+        } catch (IOException e) {
+            // Renaming still works, it just can't be undone after closing the application
+            Printer.log("Could not write undo journal '%s': %s", file, e.getMessage());
+            synchronized (this) {
+                closeChannel();
+            }
+            return;
+        }
+
+        commits.increment();
+        commitNanos.add(System.nanoTime() - start);
+    }
+
+    private void open(StandardOpenOption mode) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+
+        try {
+            committer = ServiceExecutor.getScheduler().scheduleWithFixedDelay(this::commit,
+                    GROUP_MILLIS, GROUP_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException shuttingDown) {
+            // Then everything is written out on close
+        }
+    }
+
+    // Callers hold the lock
+    private void closeChannel() {
+        if (channel == null) return;
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+
+        channel = null;
+    }
+
+    private synchronized void writeHeader(Path root) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(root.toString());
+        added++;
+    }
+
+    private void write(Path photo, Map<Path, Path> files) throws IOException {
+        out.writeUTF(key(photo).toString());
+        out.writeInt(files.size());
+        for (Map.Entry<Path, Path> entry : files.entrySet()) {
+            out.writeUTF(key(entry.getKey()).toString());
+            out.writeUTF(key(entry.getValue()).toString());
+        }
+    }
+
+    // Replays the journal into the history. Returns false if there is no journal to carry on with.
+    private boolean load(Path root) throws IOException {
+        if (!Files.exists(file)) return false;
+
+        // Moves on record as planned, but not (yet) as done
+        Map<Integer, Planned> open = new TreeMap<>();
+        long valid = 0;
+
+        try (CountingInputStream counting = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file)));
+             DataInputStream in = new DataInputStream(counting)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(root.toString())) {
+                Printer.log("Discarding undo journal '%s' of an unknown format", file);
+                return false;
+            }
+
+            valid = counting.getCount();
+
+            while (true) {
+                byte type = in.readByte();
+                if (type == PLANNED) {
+                    int planned = in.readInt();
+                    open.put(planned, read(in));
+                    sequence = Math.max(sequence, planned + 1);
+                } else if (type == DONE) {
+                    Planned done = open.remove(in.readInt());
+                    if (done != null) replay(done.photo, done.files);
+                } else {
+                    throw new EOFException("Unknown record type " + type);
+                }
+
+                valid = counting.getCount();
+            }
+        } catch (EOFException endOfJournal) {
+            // Expected once every record has been read, or where a record was cut short
+        }
+
+        // The disk tells whether moves that never made it on record as done went through
+        for (Planned planned : open.values()) {
+            Map<Path, Path> moved = new LinkedHashMap<>();
+            for (Map.Entry<Path, Path> file : planned.files.entrySet()) {
+                Path original = file.getKey();
+                Path location = file.getValue();
+                boolean done = original.equals(location)
+                        ? Files.exists(original)
+                        : Files.exists(location) && !Files.exists(original);
+                if (done) moved.put(original, location);
+            }
+
+            replay(planned.photo, moved);
+        }
+
+        // A record cut short by a crash would otherwise break every record appended after it
+        if (valid < Files.size(file)) {
+            try (FileChannel truncating = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                truncating.truncate(valid);
+            }
+        }
+
+        Printer.debug("Loaded %d photo(s) to undo from '%s'", history.size(), file);
+        return valid > 0;
+    }
+
+    private void replay(Path photo, Map<Path, Path> files) {
+        for (Map.Entry<Path, Path> file : files.entrySet()) {
+            if (file.getKey().equals(file.getValue())) {
+                Map<Path, Path> set = history.get(photo);
+                if (set != null) set.remove(file.getKey());
+            } else {
+                history.computeIfAbsent(photo, p -> new LinkedHashMap<>()).put(file.getKey(), file.getValue());
+            }
+        }
+
+        Map<Path, Path> set = history.get(photo);
+        if (set != null && set.isEmpty()) history.remove(photo);
+    }
+
+    private static Planned read(DataInputStream in) throws IOException {
+        Path photo = Path.of(in.readUTF());
+        int count = in.readInt();
+
+        Map<Path, Path> files = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++)
+            files.put(Path.of(in.readUTF()), Path.of(in.readUTF()));
+
+        return new Planned(photo, files);
+    }
+
+    private static Path fileFor(Path root, Path output) {
+        // One journal per source directory, since several may be renamed into the same output
+        String name = Hashing.sha256().hashString(root.toString(), StandardCharsets.UTF_8).toString();
+        return key(output).resolve(PREFIX + name.substring(0, 16) + SUFFIX);
+    }
+
+    private static Path key(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    private static final class Planned {
+
+        private final Path photo;
+        private final Map<Path, Path> files;
+
+        private Planned(Path photo, Map<Path, Path> files) {
+            this.photo = photo;
+            this.files = files;
+        }
+    }
+}
@@ -10,7 +10,12 @@ import javafx.application.Platform;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
+import javafx.stage.FileChooser;
 import me.deezee.photonamer.PhotoNamer;
+import me.deezee.photonamer.ServiceExecutor;
+import me.deezee.photonamer.geo.Gazetteer;
+
+import java.io.File;
 
 public class NamerMenuBar extends MenuBar {
 
@@ -18,12 +23,32 @@ public class NamerMenuBar extends MenuBar {
 
         // File menu
         Menu fileMenu = new Menu("File");
+        MenuItem importGazetteer = new MenuItem("Import gazetteer...");
+        importGazetteer.setOnAction(event -> {
+            FileChooser chooser = new FileChooser();
+            chooser.setTitle("Select GeoNames cities dump");
+            chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("GeoNames dump", "*.txt"));
+
+            File selected = chooser.showOpenDialog(getScene().getWindow());
+            if (selected == null) return;
+
+            // Building the index reads the whole dump, so keep it off the UI thread
+            ServiceExecutor.getPreviewExecutor().execute(() -> {
+                try {
+                    Gazetteer.build(selected.toPath(), Gazetteer.DEFAULT_PATH);
+                    Gazetteer.reloadDefault();
+                } catch (Exception e) {
+                    Platform.runLater(() -> PhotoNamer.alertError(e));
+                }
+            });
+        });
+
         MenuItem close = new MenuItem("Close");
         close.setOnAction(event -> {
             Platform.exit();
             System.exit(0);
         });
-        fileMenu.getItems().addAll(close);
+        fileMenu.getItems().addAll(importGazetteer, close);
 
         getMenus().addAll(fileMenu);
     }
@@ -0,0 +1,118 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.util;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Input stream over a file channel which reads at an explicit position and
+ * stops after a fixed number of bytes have actually been read.
+ *
+ * <p>Skipping only moves the position, so metadata readers jumping over
+ * image data don't cost any reads nor count towards the budget.</p>
+ */
+public final class ChannelInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long budget;
+
+    private long position;
+    private long mark;
+    private long bytesRead;
+    private boolean exhausted;
+
+    private ChannelInputStream(FileChannel channel, long budget) {
+        this.channel = channel;
+        this.budget = budget;
+    }
+
+    public static ChannelInputStream open(Path file, long budget) throws IOException {
+        Validate.notNull(file, "File cannot be null");
+        Validate.isTrue(budget > 0, "Read budget must be positive");
+
+        return new ChannelInputStream(FileChannel.open(file, StandardOpenOption.READ), budget);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+
+        if (bytesRead >= budget) {
+            exhausted = true;
+            return -1;
+        }
+
+        int n = (int) Math.min(len, budget - bytesRead);
+        int read = channel.read(ByteBuffer.wrap(b, off, n), position);
+        if (read <= 0) return -1;
+
+        position += read;
+        bytesRead += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) return 0;
+
+        long skipped = Math.max(Math.min(n, channel.size() - position), 0);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        long left = Math.min(channel.size() - position, budget - bytesRead);
+        return (int) Math.max(Math.min(left, Integer.MAX_VALUE), 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    // Whether a read was cut short by the budget rather than by the end of the file
+    public boolean isExhausted() {
+        return exhausted;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.util;
+
+import com.google.common.io.BaseEncoding;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+public enum ContentHash {
+
+    SHA256,
+    XXH64;
+
+    // Files at least this big are memory-mapped rather than copied through a buffer
+    private static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // One read buffer per worker thread
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    // Computes every requested hash in a single pass over the file, as lower case hex
+    public static Map<ContentHash, String> compute(Path file, Set<ContentHash> hashes) throws IOException {
+        Validate.notNull(file, "File to hash cannot be null");
+        Validate.notEmpty(hashes, "Nothing to hash");
+
+        List<Consumer<ByteBuffer>> sinks = new ArrayList<>(hashes.size());
+        Map<ContentHash, Supplier<String>> digests = new EnumMap<>(ContentHash.class);
+
+        if (hashes.contains(SHA256)) {
+            MessageDigest sha256 = newSha256();
+            sinks.add(sha256::update);
+            digests.put(SHA256, () -> BaseEncoding.base16().lowerCase().encode(sha256.digest()));
+        }
+
+        if (hashes.contains(XXH64)) {
+            XXHash64 xxh64 = new XXHash64();
+            sinks.add(xxh64::update);
+            digests.put(XXH64, () -> String.format("%016x", xxh64.digest()));
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size >= MAP_THRESHOLD) {
+                // Hash straight out of the page cache without copying onto the heap
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                            pos, Math.min(MAP_WINDOW, size - pos));
+                    feed(sinks, window);
+                }
+            } else {
+                ByteBuffer buffer = BUFFER.get();
+                buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    feed(sinks, buffer);
+                    buffer.clear();
+                }
+            }
+        }
+
+        Map<ContentHash, String> result = new EnumMap<>(ContentHash.class);
+        digests.forEach((hash, digest) -> result.put(hash, digest.get()));
+        return result;
+    }
+
+    private static void feed(List<Consumer<ByteBuffer>> sinks, ByteBuffer data) {
+        // Every sink reads its own view, so the position of one does not affect another
+        for (Consumer<ByteBuffer> sink : sinks)
+            sink.accept(data.duplicate());
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.meta;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.lang.GeoLocation;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import com.drew.metadata.exif.GpsDirectory;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the fast path against a full metadata-extractor read of the same
+ * file, for every container it handles.  Files are put together byte by byte,
+ * so that each layout the fast path relies on is covered on purpose.
+ */
+class ExifFastReaderTest {
+
+    private static final String TAKEN = "2019:07:14 18:03:27";
+
+    private static final int TIFF = 0x2A;
+
+    // "RO" and "RS", as the two Olympus RAW variants put in place of 42
+    private static final int ORF = 0x4F52;
+    private static final int ORF_SP = 0x5352;
+
+    // 51 30' 12.34" N, 0 7' 39.12" W
+    private static final long[] LATITUDE = {51, 1, 30, 1, 1234, 100};
+    private static final long[] LONGITUDE = {0, 1, 7, 1, 3912, 100};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void tiffBigEndian() throws Exception {
+        assertSameAsFullRead(write("big.tif", tiff(ByteOrder.BIG_ENDIAN, true, true)), true);
+    }
+
+    @Test
+    void tiffLittleEndian() throws Exception {
+        assertSameAsFullRead(write("little.tif", tiff(ByteOrder.LITTLE_ENDIAN, true, true)), true);
+    }
+
+    @Test
+    void tiffWithoutGps() throws Exception {
+        assertSameAsFullRead(write("nogps.tif", tiff(ByteOrder.LITTLE_ENDIAN, true, false)), false);
+    }
+
+    // NEF, ARW and DNG files are laid out as plain TIFF, and covered above
+
+    @Test
+    void orfLittleEndian() throws Exception {
+        assertSameAsFullRead(write("little.orf", tiff(ByteOrder.LITTLE_ENDIAN, ORF, new byte[0], true, true)), true);
+    }
+
+    @Test
+    void orfBigEndian() throws Exception {
+        assertSameAsFullRead(write("big.orf", tiff(ByteOrder.BIG_ENDIAN, ORF, new byte[0], true, true)), true);
+    }
+
+    @Test
+    void orfSp() throws Exception {
+        assertSameAsFullRead(write("sp.orf", tiff(ByteOrder.LITTLE_ENDIAN, ORF_SP, new byte[0], true, true)), true);
+    }
+
+    @Test
+    void cr2() throws Exception {
+        // "CR", version 2.0 and the offset of the RAW IFD sit between the header and IFD0
+        byte[] canon = {'C', 'R', 2, 0, 0, 0, 0, 0};
+        assertSameAsFullRead(write("photo.cr2", tiff(ByteOrder.LITTLE_ENDIAN, TIFF, canon, true, true)), true);
+    }
+
+    @Test
+    void jpegBigEndian() throws Exception {
+        assertSameAsFullRead(write("big.jpg", jpeg(tiff(ByteOrder.BIG_ENDIAN, true, true))), true);
+    }
+
+    @Test
+    void jpegLittleEndian() throws Exception {
+        assertSameAsFullRead(write("little.jpg", jpeg(tiff(ByteOrder.LITTLE_ENDIAN, true, true))), true);
+    }
+
+    @Test
+    void heic() throws Exception {
+        assertSameAsFullRead(write("photo.heic", heic(tiff(ByteOrder.BIG_ENDIAN, true, true))), true);
+    }
+
+    @Test
+    void missingSubIfdIsLeftToFullRead() throws Exception {
+        Path file = write("nosub.tif", tiff(ByteOrder.LITTLE_ENDIAN, false, true));
+
+        assertFalse(ExifFastReader.read(file).isPresent());
+        assertNull(ImageMetadataReader.readMetadata(file.toFile()).getFirstDirectoryOfType(ExifSubIFDDirectory.class));
+    }
+
+    @Test
+    void jpegWithoutExifIsLeftToFullRead() throws Exception {
+        Path file = write("noexif.jpg", jpeg(null));
+
+        assertFalse(ExifFastReader.read(file).isPresent());
+        assertNull(ImageMetadataReader.readMetadata(file.toFile()).getFirstDirectoryOfType(ExifSubIFDDirectory.class));
+    }
+
+    private static void assertSameAsFullRead(Path file, boolean located) throws Exception {
+        Optional<ExifFastReader.Result> fast = ExifFastReader.read(file);
+        assertTrue(fast.isPresent(), "Fast read of " + file.getFileName());
+
+        Date expected = Date.from(LocalDateTime.of(2019, 7, 14, 18, 3, 27).toInstant(ZoneOffset.UTC));
+        assertEquals(expected, fast.get().getTaken().orElse(null));
+        assertEquals(located, fast.get().getLocation().isPresent());
+
+        // Read the same way as a photo without a fast path is
+        Metadata full = ImageMetadataReader.readMetadata(file.toFile());
+        Date fullTaken = null;
+        for (ExifSubIFDDirectory sub : full.getDirectoriesOfType(ExifSubIFDDirectory.class))
+            if (fullTaken == null) fullTaken = sub.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
+
+        GpsDirectory gps = full.getFirstDirectoryOfType(GpsDirectory.class);
+        GeoLocation fullLocation = gps == null ? null : gps.getGeoLocation();
+
+        assertEquals(fullTaken, fast.get().getTaken().orElse(null));
+        assertEquals(fullLocation, fast.get().getLocation().orElse(null));
+    }
+
+    private Path write(String name, byte[] bytes) throws Exception {
+        return Files.write(dir.resolve(name), bytes);
+    }
+
+    private static byte[] tiff(ByteOrder order, boolean exif, boolean gps) {
+        return tiff(order, TIFF, new byte[0], exif, gps);
+    }
+
+    // A TIFF header with the given magic number, whatever a RAW format keeps after it, then IFD0, and an
+    // EXIF IFD holding the taken date and a GPS IFD if asked for. Without an EXIF IFD, the date goes into
+    // IFD0 instead.
+    private static byte[] tiff(ByteOrder order, int magic, byte[] extra, boolean exif, boolean gps) {
+        int ifd0Entries = 1 + (gps ? 1 : 0);
+        int ifd0 = 8 + extra.length;
+        int exifIfd = ifd0 + 2 + 12 * ifd0Entries + 4;
+        int gpsIfd = exifIfd + (exif ? 2 + 12 + 4 : 0);
+        int data = gpsIfd + (gps ? 2 + 12 * 4 + 4 : 0);
+        int latitude = data + 20;
+        int longitude = latitude + 24;
+
+        ByteBuffer tiff = ByteBuffer.allocate(longitude + 24).order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.putShort((short) magic);
+        tiff.putInt(ifd0);
+        tiff.put(extra);
+
+        // Entries sorted by tag, as TIFF requires
+        tiff.putShort((short) ifd0Entries);
+        if (exif)   entry(tiff, 0x8769, 4, 1, exifIfd);
+        else        entry(tiff, 0x0132, 2, 20, data);
+        if (gps)    entry(tiff, 0x8825, 4, 1, gpsIfd);
+        tiff.putInt(0);
+
+        if (exif) {
+            tiff.putShort((short) 1);
+            entry(tiff, ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL, 2, 20, data);
+            tiff.putInt(0);
+        }
+
+        if (gps) {
+            tiff.putShort((short) 4);
+            entry(tiff, GpsDirectory.TAG_LATITUDE_REF, 2, 2, inline(order, 'N'));
+            entry(tiff, GpsDirectory.TAG_LATITUDE, 5, 3, latitude);
+            entry(tiff, GpsDirectory.TAG_LONGITUDE_REF, 2, 2, inline(order, 'W'));
+            entry(tiff, GpsDirectory.TAG_LONGITUDE, 5, 3, longitude);
+            tiff.putInt(0);
+        }
+
+        tiff.put((TAKEN + '\0').getBytes(StandardCharsets.US_ASCII));
+        for (long value : LATITUDE) tiff.putInt((int) value);
+        for (long value : LONGITUDE) tiff.putInt((int) value);
+
+        return tiff.array();
+    }
+
+    private static void entry(ByteBuffer tiff, int tag, int type, int count, int value) {
+        tiff.putShort((short) tag);
+        tiff.putShort((short) type);
+        tiff.putInt(count);
+        tiff.putInt(value);
+    }
+
+    // A two character string fits in the entry itself, left aligned whatever the byte order
+    private static int inline(ByteOrder order, char c) {
+        return ByteBuffer.wrap(new byte[]{(byte) c, 0, 0, 0}).order(order).getInt();
+    }
+
+    // A JFIF segment ahead of the EXIF segment, as most cameras write them
+    private static byte[] jpeg(byte[] tiff) {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ByteBuffer jfif = ByteBuffer.allocate(18);
+        jfif.putShort((short) 0xFFE0).putShort((short) 16).put("JFIF\0".getBytes(StandardCharsets.US_ASCII));
+        jfif.put(new byte[]{1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        jpeg.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xD8});
+        jpeg.writeBytes(jfif.array());
+
+        if (tiff != null) {
+            ByteBuffer app1 = ByteBuffer.allocate(10 + tiff.length);
+            app1.putShort((short) 0xFFE1).putShort((short) (8 + tiff.length));
+            app1.put("Exif\0\0".getBytes(StandardCharsets.US_ASCII)).put(tiff);
+            jpeg.writeBytes(app1.array());
+        }
+
+        jpeg.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xDA, 0, 2, (byte) 0xFF, (byte) 0xD9});
+        return jpeg.toByteArray();
+    }
+
+    // An "ftyp" box, then a "meta" box whose only item is the EXIF one, stored in the "mdat" box after it
+    private static byte[] heic(byte[] tiff) {
+        byte[] item = ByteBuffer.allocate(10 + tiff.length).putInt(6)
+                .put("Exif\0\0".getBytes(StandardCharsets.US_ASCII)).put(tiff).array();
+
+        ByteBuffer ftyp = box(24, "ftyp").put(ascii("heic")).putInt(0).put(ascii("mif1")).put(ascii("heic"));
+
+        ByteBuffer hdlr = box(33, "hdlr").putInt(0).putInt(0).put(ascii("pict")).put(new byte[13]);
+
+        ByteBuffer infe = box(21, "infe").putInt(2 << 24).putShort((short) 1).putShort((short) 0)
+                .put(ascii("Exif")).put((byte) 0);
+        ByteBuffer iinf = box(35, "iinf").putInt(0).putShort((short) 1).put(infe.array());
+
+        int offset = 24 + 110 + 8;
+        ByteBuffer iloc = box(30, "iloc").putInt(0).put((byte) 0x44).put((byte) 0).putShort((short) 1)
+                .putShort((short) 1).putShort((short) 0).putShort((short) 1).putInt(offset).putInt(item.length);
+
+        ByteBuffer meta = box(110, "meta").putInt(0).put(hdlr.array()).put(iinf.array()).put(iloc.array());
+        ByteBuffer mdat = box(8 + item.length, "mdat").put(item);
+
+        return ByteBuffer.allocate(offset + item.length)
+                .put(ftyp.array()).put(meta.array()).put(mdat.array()).array();
+    }
+
+    private static ByteBuffer box(int size, String type) {
+        return ByteBuffer.allocate(size).putInt(size).put(ascii(type));
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
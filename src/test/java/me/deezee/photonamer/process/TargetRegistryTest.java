@@ -0,0 +1,92 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.process;
+
+import me.deezee.photonamer.PhotoWrapper;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class TargetRegistryTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rerunOverNamedFolderKeepsNames() throws Exception {
+        Path first = Files.writeString(dir.resolve("2019-07-14.jpg"), "first");
+        Path second = Files.writeString(dir.resolve("2019-07-14 (1).jpg"), "second");
+        Path sidecar = Files.writeString(dir.resolve("2019-07-14 (1).xmp"), "sidecar");
+        Set<String> before = names();
+
+        // The later file first, as parallel workers might
+        TargetRegistry registry = new TargetRegistry();
+        Map<Path, Path> moved = new PhotoWrapper(second).move(
+                Pair.of("2019-07-14", "jpg"), dir, registry, List.of(sidecar));
+        assertEquals(second, moved.get(second));
+        assertEquals(sidecar, moved.get(sidecar));
+
+        assertEquals(first, new PhotoWrapper(first).move(Pair.of("2019-07-14", "jpg"), dir, registry));
+        assertEquals(before, names());
+        assertEquals("first", Files.readString(first));
+        assertEquals("second", Files.readString(second));
+    }
+
+    @Test
+    void otherFilesStillMoveAside() throws Exception {
+        Files.writeString(dir.resolve("2019-07-14.jpg"), "named");
+        Path incoming = Files.writeString(dir.resolve("IMG_0001.jpg"), "incoming");
+
+        Path moved = new PhotoWrapper(incoming).move(Pair.of("2019-07-14", "jpg"), dir, new TargetRegistry());
+        assertEquals(dir.resolve("2019-07-14 (1).jpg"), moved);
+        assertEquals(Set.of("2019-07-14.jpg", "2019-07-14 (1).jpg"), names());
+    }
+
+    @Test
+    void forgottenNamesStayTaken() throws Exception {
+        TargetRegistry registry = new TargetRegistry();
+        TargetRegistry.Claim other = registry.claim(dir, "a", List.of(".png"));
+
+        Path renamed = registry.claim(dir, "a", List.of(".jpg")).getTargets().get(0);
+        Files.writeString(renamed, "renamed");
+        registry.forget(List.of(renamed));
+
+        // Brings the next suffix back down below the forgotten name
+        other.release();
+        assertEquals(dir.resolve("a.jpg"), registry.claim(dir, "a", List.of(".jpg")).getTargets().get(0));
+        assertEquals(dir.resolve("a (2).jpg"), registry.claim(dir, "a", List.of(".jpg")).getTargets().get(0));
+    }
+
+    @Test
+    void folderIsListedAgainOnceAllForgotten() throws Exception {
+        TargetRegistry registry = new TargetRegistry();
+        Path renamed = registry.claim(dir, "a", List.of(".jpg")).getTargets().get(0);
+        Files.writeString(renamed, "renamed");
+        registry.forget(List.of(renamed));
+
+        assertFalse(registry.isClaimed(renamed));
+        assertEquals(dir.resolve("a (1).jpg"), registry.claim(dir, "a", List.of(".jpg")).getTargets().get(0));
+    }
+
+    private Set<String> names() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+}
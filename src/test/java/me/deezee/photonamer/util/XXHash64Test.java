@@ -0,0 +1,87 @@
+/*
+ * Part of photonamer.
+ *
+ * @author deezee30 (2020).
+ */
+
+package me.deezee.photonamer.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class XXHash64Test {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void referenceVectors() {
+        // As published with the reference implementation, seed 0
+        assertHash(0xEF46DB3751D8E999L, "");
+        assertHash(0xD24EC4F1A98C6E5BL, "a");
+        assertHash(0x44BC2CF5AD770999L, "abc");
+        assertHash(0xFBCEA83C8A378BF1L, "Nobody inspects the spammish repetition");
+    }
+
+    @Test
+    void splitUpdatesMatchOneUpdate() {
+        byte[] data = random(300);
+        long whole = new XXHash64().update(ByteBuffer.wrap(data)).digest();
+
+        // Every split point, so that each length of a pending stripe is topped up once
+        for (int split = 0; split <= data.length; split++) {
+            XXHash64 hash = new XXHash64();
+            hash.update(ByteBuffer.wrap(data, 0, split));
+            hash.update(ByteBuffer.wrap(data, split, data.length - split));
+            assertEquals(whole, hash.digest(), "Split at " + split);
+        }
+
+        // One byte at a time
+        XXHash64 hash = new XXHash64();
+        for (byte b : data) hash.update(ByteBuffer.wrap(new byte[]{b}));
+        assertEquals(whole, hash.digest());
+    }
+
+    @Test
+    void resetStartsOver() {
+        XXHash64 hash = new XXHash64();
+        hash.update(ByteBuffer.wrap(random(100)));
+        hash.reset();
+
+        assertEquals(0xEF46DB3751D8E999L, hash.digest());
+    }
+
+    @Test
+    void contentHashReadsAndMapsAlike() throws Exception {
+        // Below and above the size at which files are memory-mapped
+        for (int size : new int[]{1000, 5 * 1024 * 1024 + 7}) {
+            byte[] data = random(size);
+            Path file = Files.write(dir.resolve(size + ".bin"), data);
+
+            Map<ContentHash, String> hashes = ContentHash.compute(file, Set.of(ContentHash.XXH64));
+            assertEquals(String.format("%016x", new XXHash64().update(ByteBuffer.wrap(data)).digest()),
+                    hashes.get(ContentHash.XXH64), "Size " + size);
+        }
+    }
+
+    private static void assertHash(long expected, String text) {
+        byte[] data = text.getBytes(StandardCharsets.US_ASCII);
+        assertEquals(expected, new XXHash64().update(ByteBuffer.wrap(data)).digest(), "'" + text + "'");
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}